@@ -0,0 +1,817 @@
+package com.omicronapplications.adplugdb;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.test.platform.app.InstrumentationRegistry;
+import androidx.test.ext.junit.runners.AndroidJUnit4;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+@RunWith(AndroidJUnit4.class)
+public class AdPlugDbBenchmark {
+    private static final String TAG = "AdPlugDbBenchmark";
+    private static final int TREE_DIRS = 20;
+    private static final int TREE_SUBDIRS = 10;
+    private static final int TREE_FILES = 20;
+    private static final int RUNS = 3;
+    private static final int SONG_DIRS = 10;
+    private static final int SONG_FILES = 1000;
+    private static final int INFO_BATCH_SIZE = 100;
+    private static final int LIST_DIRS = 1000;
+    private static final int LIST_FILES = 100;
+    private static final int LIST_QUERIES = 100;
+    private static final int RECONCILE_FILES = 5000;
+    private static final int DICTIONARY_TYPES = 10;
+    private static final int DICTIONARY_AUTHORS = 200;
+    private static final int PAGE_FILES = 20000;
+    private static final int PAGE_SIZE = 100;
+    private static final int CACHE_FILES = 2000;
+    // Prime stride, so that titles are out of insertion order
+    private static final int TITLE_STRIDE = 7919;
+    private static final String DUMP_PATH = "/sdcard/dump";
+    private static final long MAX_BROWSE_MS = 250;
+    private static final long MAX_IMPORT_MS = 1000;
+    private static final String[] SEARCH_QUERIES = {"song", "song42"};
+    private static final String[] MIXED_FILES = {"song%d.d00", "cover%d.jpg", "readme%d.txt", "archive%d.zip"};
+    private File mRoot;
+
+    @Before
+    public void setup() {
+        mRoot = new File(getCacheDir(), "benchmark");
+        deleteDir(mRoot);
+        assertTrue(mRoot.mkdir());
+    }
+
+    @After
+    public void shutdown() {
+        deleteDir(mRoot);
+    }
+
+    private File getCacheDir() {
+        return InstrumentationRegistry.getInstrumentation().getContext().getCacheDir();
+    }
+
+    private void deleteDir(File dir) {
+        File[] list = dir.listFiles();
+        if (list != null) {
+            for (File f : list) {
+                if (f.isDirectory()) {
+                    deleteDir(f);
+                }
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+
+    private void createFile(File f) {
+        try {
+            FileOutputStream fos = new FileOutputStream(f);
+            fos.write(new byte[16]);
+            fos.close();
+        } catch (IOException e) {
+            fail(e.getMessage());
+        }
+    }
+
+    private int createTree() {
+        int count = 0;
+        for (int i = 0; i < TREE_DIRS; i++) {
+            File dir = new File(mRoot, "dir" + i);
+            assertTrue(dir.mkdir());
+            for (int j = 0; j < TREE_SUBDIRS; j++) {
+                File subdir = new File(dir, "subdir" + j);
+                assertTrue(subdir.mkdir());
+                for (int k = 0; k < TREE_FILES; k++) {
+                    createFile(new File(subdir, "song" + k + ".d00"));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private int createSongs() {
+        int count = 0;
+        for (int i = 0; i < SONG_DIRS; i++) {
+            File dir = new File(mRoot, "dir" + i);
+            assertTrue(dir.mkdir());
+            for (int j = 0; j < SONG_FILES; j++) {
+                createFile(new File(dir, "song" + j + ".d00"));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private int createMixed() {
+        int count = 0;
+        for (int i = 0; i < SONG_DIRS; i++) {
+            File dir = new File(mRoot, "dir" + i);
+            assertTrue(dir.mkdir());
+            for (int j = 0; j < SONG_FILES / MIXED_FILES.length; j++) {
+                for (String name : MIXED_FILES) {
+                    createFile(new File(dir, String.format(Locale.US, name, j)));
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    // Database version 3 layout, path stored on every row
+    private static void insertSongs(SQLiteDatabase db) {
+        SQLiteStatement insert = db.compileStatement("INSERT INTO adplug (path, name, type, title, author, description, " +
+                "length, songlength, subsongs, valid, dir, playlist, modified, size) " +
+                "VALUES (?, ?, 'EdLib packed (version 4)', ?, 'Author', '', 16, 60000, 1, 1, 0, 0, 0, 16)");
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < LIST_DIRS; i++) {
+                for (int j = 0; j < LIST_FILES; j++) {
+                    insert.bindString(1, "/sdcard/dir" + i);
+                    insert.bindString(2, "song" + j + ".d00");
+                    insert.bindString(3, "Title " + j);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+    }
+
+    private static void insertSongs(AdPlugDbWriter writer) {
+        for (int i = 0; i < LIST_DIRS; i++) {
+            for (int j = 0; j < LIST_FILES; j++) {
+                AdPlugFile song = new AdPlugFile("/sdcard/dir" + i, "song" + j + ".d00", "EdLib packed (version 4)",
+                        "Title " + j, "Author", "", 16, 60000, 1, true, false);
+                writer.insert(song, 0, 16);
+            }
+        }
+        writer.flush();
+    }
+
+    private static long timeList(SQLiteDatabase db, String sql) {
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LIST_QUERIES; i++) {
+            assertEquals(LIST_FILES, rows(db.rawQuery(sql, new String[] {"/sdcard/dir" + (i * 7) % LIST_DIRS})));
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    // Folder listing and fingerprints, as looked up for each folder during indexing
+    private static long timeLookups(SQLiteDatabase db, boolean bound) {
+        String folder = "SELECT " + AdPlugDb.SONG_COLUMNS + " FROM " + AdPlugDb.SONG_TABLES +
+                " WHERE " + AdPlugDb.DIR_TABLE_NAME + "." + AdPlugDb.KEY_PATH + " = ";
+        String fingerprints = "SELECT adplug.name, adplug.modified, size FROM " + AdPlugDb.SONG_TABLES +
+                " WHERE " + AdPlugDb.DIR_TABLE_NAME + "." + AdPlugDb.KEY_PATH + " = ";
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 0; i < LIST_DIRS; i++) {
+            String path = "/sdcard/dir" + i;
+            Cursor[] cursors = new Cursor[2];
+            if (bound) {
+                cursors[0] = db.rawQuery(folder + "?", new String[] {path});
+                cursors[1] = db.rawQuery(fingerprints + "? AND dir = 0", new String[] {path});
+            } else {
+                cursors[0] = db.rawQuery(folder + "'" + path + "'", null);
+                cursors[1] = db.rawQuery(fingerprints + "'" + path + "' AND dir = 0", null);
+            }
+            for (Cursor cursor : cursors) {
+                assertEquals(LIST_FILES, rows(cursor));
+            }
+        }
+        return SystemClock.elapsedRealtime() - start;
+    }
+
+    // Folder with RECONCILE_FILES songs, of which every other one is returned as found on disk
+    private static String[] insertFolder(AdPlugDbWriter writer) {
+        String[] names = new String[RECONCILE_FILES / 2];
+        for (int i = 0; i < RECONCILE_FILES; i++) {
+            String name = "song" + i + ".d00";
+            writer.insert(new AdPlugFile("/sdcard/dir", name, "EdLib packed (version 4)", "Title", "Author", "", 16, 60000, 1, true, false), 0, 16);
+            if (i % 2 == 0) {
+                names[i / 2] = name;
+            }
+        }
+        writer.flush();
+        return names;
+    }
+
+    // Folder with PAGE_FILES songs, titles out of insertion order and optionally starting with a quote
+    private static void insertDump(AdPlugDbWriter writer, boolean quoted) {
+        for (int i = 0; i < PAGE_FILES; i++) {
+            writer.insert(new AdPlugFile(DUMP_PATH, "song" + i + ".d00", "EdLib packed (version 4)",
+                    (quoted ? "\"" : "") + "Title " + (i * TITLE_STRIDE) % PAGE_FILES, "Author", "", 16, 60000, 1, true, false), 0, 16);
+        }
+        writer.flush();
+    }
+
+    // Rows in cursor, cursor closed
+    private static int rows(Cursor cursor) {
+        int rows = 0;
+        while (cursor.moveToNext()) {
+            rows++;
+        }
+        cursor.close();
+        return rows;
+    }
+
+    private static class InfoCallback implements IAdPlugDbCallback2 {
+        AdPlugDb mDb;
+        long mCount;
+        long mRequests;
+        long mSkipped;
+        int mListed;
+        int mFound;
+
+        InfoCallback(AdPlugDb db) {
+            mDb = db;
+        }
+
+        @Override
+        public void onDBServiceConnected() {
+        }
+
+        @Override
+        public void onDBServiceDisconnected() {
+        }
+
+        @Override
+        public void onStatusChanged(dbStatus status) {
+        }
+
+        @Override
+        public void requestInfo(String name, long length) {
+            mRequests++;
+            mDb.onSongInfo(name, "EdLib packed (version 4)", "Title", "Author", "", length, 60000, 1, true, false);
+        }
+
+        @Override
+        public void requestInfoBatch(String[] names, long[] lengths) {
+            mRequests += names.length;
+            AdPlugInfoBatch batch = new AdPlugInfoBatch(names.length);
+            for (int i = 0; i < names.length; i++) {
+                batch.set(i, names[i], "EdLib packed (version 4)", "Title", "Author", "", lengths[i], 60000, 1, true, false);
+            }
+            mDb.onSongInfoBatch(batch);
+        }
+
+        @Override
+        public void onList(List<AdPlugFile> songs) {
+            mListed = songs.size();
+        }
+
+        @Override
+        public void onListPage(String path, List<AdPlugFile> songs, int offset, long total) {
+        }
+
+        @Override
+        public void onPlaylist(List<AdPlugFile> playlists) {
+        }
+
+        @Override
+        public void onStatus(dbStatus status) {
+        }
+
+        @Override
+        public void onGetCount(long count) {
+            mCount = count;
+        }
+
+        @Override
+        public void onGetProgress(long outstanding, long completed, long skipped) {
+            mSkipped = skipped;
+        }
+
+        @Override
+        public void onGetCacheStats(int hits, int misses, int size) {
+        }
+
+        @Override
+        public void onSearch(List<AdPlugFile> songs) {
+            mFound = songs.size();
+        }
+    }
+
+    private long timeIndex(AdPlugDb db, InfoCallback callback, int expected) {
+        db.delete();
+        long start = SystemClock.elapsedRealtime();
+        db.index(mRoot, false);
+        long time = SystemClock.elapsedRealtime() - start;
+        db.getCount();
+        assertEquals(expected, callback.mCount);
+        return time;
+    }
+
+    private static class CountingCallback implements AdPlugDbScanner.IScanCallback {
+        int files;
+
+        @Override
+        public File[] getSubdirectories(File path, long modified) {
+            return null;
+        }
+
+        @Override
+        public void onDirectory(AdPlugDbScanner.Directory directory) {
+            if (directory.files != null) {
+                for (boolean dir : directory.dirs) {
+                    if (!dir) {
+                        files++;
+                    }
+                }
+            }
+        }
+    }
+
+    private long timeScan(int parallelism, int expected) {
+        AdPlugDbScanner scanner = new AdPlugDbScanner();
+        scanner.setParallelism(parallelism);
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            CountingCallback callback = new CountingCallback();
+            long start = SystemClock.elapsedRealtime();
+            scanner.scan(mRoot, true, callback);
+            long time = SystemClock.elapsedRealtime() - start;
+            assertEquals(expected, callback.files);
+            best = Math.min(best, time);
+        }
+        return best;
+    }
+
+    @Test
+    public void scan() {
+        int files = createTree();
+        long serial = timeScan(1, files);
+        long parallel = timeScan(AdPlugDbScanner.DEFAULT_PARALLELISM, files);
+        Log.i(TAG, "scan: " + files + " files, serial: " + serial + " ms, parallel (" + AdPlugDbScanner.DEFAULT_PARALLELISM + "): " + parallel + " ms");
+        assertTrue(parallel <= serial);
+    }
+
+    @Test
+    public void songInfo() {
+        int songs = createSongs();
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        InfoCallback callback = new InfoCallback(db);
+        db.setCallback(callback);
+
+        db.setInfoBatchSize(1);
+        long single = timeIndex(db, callback, songs + SONG_DIRS);
+        db.setInfoBatchSize(INFO_BATCH_SIZE);
+        long batch = timeIndex(db, callback, songs + SONG_DIRS);
+        db.delete();
+        db.close();
+        Log.i(TAG, "songInfo: " + songs + " songs, requestInfo: " + single + " ms, requestInfoBatch (" + INFO_BATCH_SIZE + "): " + batch + " ms");
+        assertTrue(batch <= single);
+    }
+
+    @Test
+    public void classify() {
+        int files = createMixed();
+        int songs = files / MIXED_FILES.length;
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        InfoCallback callback = new InfoCallback(db);
+        db.setCallback(callback);
+
+        long time = timeIndex(db, callback, files + SONG_DIRS);
+        db.getProgress();
+        db.delete();
+        db.close();
+        assertEquals(songs, callback.mRequests);
+        assertEquals(files - songs, callback.mSkipped);
+        Log.i(TAG, "classify: " + files + " files, requestInfo: " + callback.mRequests + ", avoided: " + callback.mSkipped + ", " + time + " ms");
+    }
+
+    @Test
+    public void list() {
+        // Database version 3 layout, single full-text table
+        SQLiteDatabase fts = SQLiteDatabase.create(null);
+        fts.execSQL("CREATE VIRTUAL TABLE adplug USING fts4(path TEXT, name TEXT, type TEXT, title TEXT, " +
+                "author TEXT, description TEXT, length INTEGER, songlength INTEGER, subsongs INTEGER, " +
+                "valid INTEGER, dir INTEGER, playlist INTEGER, modified INTEGER, size INTEGER)");
+        insertSongs(fts);
+        long before = timeList(fts, "SELECT rowid, path, name, type, title, author, description, length, songlength, " +
+                "subsongs, valid, dir, playlist FROM adplug WHERE path = ?");
+        fts.close();
+
+        // Songs referring to folder by id
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        db.delete();
+        insertSongs(new AdPlugDbWriter(db));
+        long after = timeList(db.getWritableDatabase(), "SELECT " + AdPlugDb.SONG_COLUMNS + " FROM " + AdPlugDb.SONG_TABLES +
+                " WHERE " + AdPlugDb.DIR_TABLE_NAME + "." + AdPlugDb.KEY_PATH + " = ?");
+        db.delete();
+        db.close();
+        int rows = LIST_DIRS * LIST_FILES;
+        Log.i(TAG, "list: " + rows + " rows, " + LIST_QUERIES + " listings, fts4 table: " + before + " ms, folder table: " + after + " ms");
+        assertTrue(after <= before);
+    }
+
+    @Test
+    public void lookup() {
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        db.delete();
+        insertSongs(new AdPlugDbWriter(db));
+        SQLiteDatabase sqlite = db.getWritableDatabase();
+        long built = Long.MAX_VALUE;
+        long bound = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            built = Math.min(built, timeLookups(sqlite, false));
+            bound = Math.min(bound, timeLookups(sqlite, true));
+        }
+        db.delete();
+        db.close();
+        Log.i(TAG, "lookup: " + LIST_DIRS + " folders, string built SQL: " + (built * 1000 / LIST_DIRS) + " us/folder, " +
+                "bound parameters: " + (bound * 1000 / LIST_DIRS) + " us/folder");
+        assertTrue(bound <= built);
+    }
+
+    @Test
+    public void browse() throws InterruptedException {
+        createSongs();
+        final AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        db.delete();
+        insertSongs(new AdPlugDbWriter(db));
+        db.setCallback(new InfoCallback(db));
+
+        // Full index in background, listing folders meanwhile
+        Thread index = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                db.index(mRoot, false);
+            }
+        });
+        index.start();
+        SQLiteDatabase sqlite = db.getReadableDatabase();
+        String sql = "SELECT " + AdPlugDb.SONG_COLUMNS + " FROM " + AdPlugDb.SONG_TABLES +
+                " WHERE " + AdPlugDb.DIR_TABLE_NAME + "." + AdPlugDb.KEY_PATH + " = ?";
+        long worst = 0;
+        long total = 0;
+        int listings = 0;
+        while (index.isAlive()) {
+            long start = SystemClock.elapsedRealtime();
+            rows(sqlite.rawQuery(sql, new String[] {"/sdcard/dir" + (listings * 7) % LIST_DIRS}));
+            long time = SystemClock.elapsedRealtime() - start;
+            worst = Math.max(worst, time);
+            total += time;
+            listings++;
+        }
+        index.join();
+        db.delete();
+        db.close();
+        Log.i(TAG, "browse: " + listings + " listings during index, average: " + (total / Math.max(1, listings)) +
+                " ms, worst: " + worst + " ms");
+        assertTrue(worst < MAX_BROWSE_MS);
+    }
+
+    @Test
+    public void reconcile() {
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        AdPlugDbWriter writer = new AdPlugDbWriter(db);
+        db.delete();
+        String[] names = insertFolder(writer);
+
+        // Previous approach, one delete per song missing on disk
+        long start = SystemClock.elapsedRealtime();
+        for (int i = 1; i < RECONCILE_FILES; i += 2) {
+            writer.delete(new AdPlugFile("/sdcard/dir", "song" + i + ".d00", null, null, null, null, 0, -1, -1, false, false));
+        }
+        writer.flush();
+        long single = SystemClock.elapsedRealtime() - start;
+
+        db.delete();
+        insertFolder(writer);
+        start = SystemClock.elapsedRealtime();
+        writer.reconcile("/sdcard/dir", names);
+        writer.flush();
+        long set = SystemClock.elapsedRealtime() - start;
+        SQLiteStatement count = db.getReadableDatabase().compileStatement("SELECT COUNT(*) FROM " + AdPlugDb.TABLE_NAME);
+        assertEquals(names.length, count.simpleQueryForLong());
+        count.close();
+        db.delete();
+        db.close();
+        Log.i(TAG, "reconcile: " + RECONCILE_FILES + " songs, " + (RECONCILE_FILES - names.length) + " missing, " +
+                "single deletes: " + single + " ms, set operation: " + set + " ms");
+        assertTrue(set <= single);
+    }
+
+    @Test
+    public void snapshot() {
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        AdPlugDbWriter writer = new AdPlugDbWriter(db);
+        db.delete();
+
+        // Previous approach, rebuild index song by song
+        long start = SystemClock.elapsedRealtime();
+        insertSongs(writer);
+        long rebuild = SystemClock.elapsedRealtime() - start;
+
+        File file = new File(mRoot, "snapshot.bin");
+        start = SystemClock.elapsedRealtime();
+        db.exportSnapshot(file.getAbsolutePath());
+        long export = SystemClock.elapsedRealtime() - start;
+        db.delete();
+
+        start = SystemClock.elapsedRealtime();
+        db.importSnapshot(file.getAbsolutePath());
+        long load = SystemClock.elapsedRealtime() - start;
+        SQLiteStatement count = db.getReadableDatabase().compileStatement("SELECT COUNT(*) FROM " + AdPlugDb.TABLE_NAME);
+        assertEquals(LIST_DIRS * LIST_FILES, count.simpleQueryForLong());
+        count.close();
+        db.delete();
+        db.close();
+        Log.i(TAG, "snapshot: " + LIST_DIRS * LIST_FILES + " songs, " + file.length() + " bytes, rebuild: " + rebuild +
+                " ms, export: " + export + " ms, import: " + load + " ms");
+        assertTrue(load < rebuild);
+        assertTrue(load < MAX_IMPORT_MS);
+    }
+
+    @Test
+    public void dictionary() {
+        // Database version 6 layout, type and author stored on every row
+        SQLiteDatabase text = SQLiteDatabase.openOrCreateDatabase(new File(mRoot, "text.db"), null);
+        text.execSQL("CREATE TABLE adplug (id INTEGER PRIMARY KEY, dir_id INTEGER, name TEXT, type TEXT, " +
+                "title TEXT, author TEXT, description TEXT, length INTEGER, songlength INTEGER, subsongs INTEGER, " +
+                "valid INTEGER, dir INTEGER, playlist INTEGER, modified INTEGER, size INTEGER)");
+        long before = dictionarySize(text, true, "INSERT INTO adplug (dir_id, name, type, title, author, description, length, " +
+                "songlength, subsongs, valid, dir, playlist, modified, size) VALUES (?, ?, ?, ?, ?, '', 16, 60000, 1, 1, 0, 0, 0, 16)");
+        text.close();
+
+        // Type and author referred to by id
+        SQLiteDatabase ids = SQLiteDatabase.openOrCreateDatabase(new File(mRoot, "ids.db"), null);
+        ids.execSQL("CREATE TABLE adplug (id INTEGER PRIMARY KEY, dir_id INTEGER, name TEXT, type_id INTEGER, " +
+                "title TEXT, author_id INTEGER, description TEXT, length INTEGER, songlength INTEGER, subsongs INTEGER, " +
+                "valid INTEGER, dir INTEGER, playlist INTEGER, modified INTEGER, size INTEGER)");
+        ids.execSQL("CREATE TABLE types (id INTEGER PRIMARY KEY, name TEXT)");
+        ids.execSQL("CREATE TABLE authors (id INTEGER PRIMARY KEY, name TEXT)");
+        for (int i = 0; i < DICTIONARY_TYPES; i++) {
+            ids.execSQL("INSERT INTO types (id, name) VALUES (?, ?)", new Object[] {i, typeName(i)});
+        }
+        for (int i = 0; i < DICTIONARY_AUTHORS; i++) {
+            ids.execSQL("INSERT INTO authors (id, name) VALUES (?, ?)", new Object[] {i, authorName(i)});
+        }
+        long after = dictionarySize(ids, false, "INSERT INTO adplug (dir_id, name, type_id, title, author_id, description, length, " +
+                "songlength, subsongs, valid, dir, playlist, modified, size) VALUES (?, ?, ?, ?, ?, '', 16, 60000, 1, 1, 0, 0, 0, 16)");
+        ids.close();
+        assertTrue(after < before);
+        Log.i(TAG, "dictionary: " + LIST_DIRS * LIST_FILES + " songs, type and author text: " + before +
+                " bytes, type and author ids: " + after + " bytes");
+    }
+
+    private static String typeName(int i) {
+        return "EdLib packed (version " + i + ")";
+    }
+
+    private static String authorName(int i) {
+        return "Author number " + i;
+    }
+
+    // Database size after inserting songs, with type and author bound as text or id
+    private static long dictionarySize(SQLiteDatabase db, boolean text, String sql) {
+        SQLiteStatement insert = db.compileStatement(sql);
+        db.beginTransaction();
+        try {
+            for (int i = 0; i < LIST_DIRS; i++) {
+                for (int j = 0; j < LIST_FILES; j++) {
+                    insert.bindLong(1, i);
+                    insert.bindString(2, "song" + j + ".d00");
+                    if (text) {
+                        insert.bindString(3, typeName(j % DICTIONARY_TYPES));
+                        insert.bindString(5, authorName((i + j) % DICTIONARY_AUTHORS));
+                    } else {
+                        insert.bindLong(3, j % DICTIONARY_TYPES);
+                        insert.bindLong(5, (i + j) % DICTIONARY_AUTHORS);
+                    }
+                    insert.bindString(4, "Title " + j);
+                    insert.executeInsert();
+                }
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+            insert.close();
+        }
+        SQLiteStatement pages = db.compileStatement("PRAGMA page_count");
+        SQLiteStatement size = db.compileStatement("PRAGMA page_size");
+        long bytes = pages.simpleQueryForLong() * size.simpleQueryForLong();
+        pages.close();
+        size.close();
+        return bytes;
+    }
+
+    @Test
+    public void page() {
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        db.delete();
+        insertDump(new AdPlugDbWriter(db), false);
+        SQLiteDatabase sqlite = db.getReadableDatabase();
+        String folder = " FROM " + AdPlugDb.SONG_TABLES + " WHERE " + AdPlugDb.DIR_TABLE_NAME + "." + AdPlugDb.KEY_PATH + " = ?";
+
+        // Previous approach, whole folder read and sorted in memory
+        long whole = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            List<AdPlugFile> songs = new ArrayList<>();
+            Cursor cursor = sqlite.rawQuery("SELECT " + AdPlugDb.SONG_COLUMNS + folder, new String[] {DUMP_PATH});
+            while (cursor.moveToNext()) {
+                AdPlugFile song = new AdPlugFile();
+                song.name = cursor.getString(2);
+                song.title = cursor.getString(4);
+                songs.add(song);
+            }
+            cursor.close();
+            Collections.sort(songs, new Comparator<AdPlugFile>() {
+                @Override
+                public int compare(AdPlugFile o1, AdPlugFile o2) {
+                    return o1.title.toLowerCase().compareTo(o2.title.toLowerCase());
+                }
+            });
+            assertEquals(PAGE_FILES, songs.size());
+            whole = Math.min(whole, SystemClock.elapsedRealtime() - start);
+        }
+
+        // First page sorted in database, and total count
+        long page = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            SQLiteStatement count = sqlite.compileStatement("SELECT COUNT(*)" + folder);
+            count.bindString(1, DUMP_PATH);
+            assertEquals(PAGE_FILES, count.simpleQueryForLong());
+            count.close();
+            Cursor cursor = sqlite.rawQuery("SELECT " + AdPlugDb.SONG_COLUMNS + folder + " ORDER BY lower(" + AdPlugDb.KEY_TITLE +
+                    "), " + AdPlugDb.TABLE_NAME + "." + AdPlugDb.KEY_ID + " LIMIT ? OFFSET 0", new String[] {DUMP_PATH, Integer.toString(PAGE_SIZE)});
+            assertEquals(PAGE_SIZE, rows(cursor));
+            page = Math.min(page, SystemClock.elapsedRealtime() - start);
+        }
+        db.delete();
+        db.close();
+        Log.i(TAG, "page: " + PAGE_FILES + " songs in folder, whole folder: " + whole + " ms, page of " + PAGE_SIZE + ": " + page + " ms");
+        assertTrue(page <= whole);
+    }
+
+    @Test
+    public void sortkey() {
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        db.delete();
+        insertDump(new AdPlugDbWriter(db), true);
+        SQLiteDatabase sqlite = db.getReadableDatabase();
+        String folder = "SELECT " + AdPlugDb.SONG_COLUMNS + " FROM " + AdPlugDb.SONG_TABLES +
+                " WHERE " + AdPlugDb.DIR_TABLE_NAME + "." + AdPlugDb.KEY_PATH + " = ? ORDER BY " + AdPlugDb.KEY_DIR + " DESC, ";
+        String title = "lower(CASE WHEN " + AdPlugDb.KEY_TITLE + " IS NULL OR " + AdPlugDb.KEY_TITLE + " = '' THEN " +
+                AdPlugDb.TABLE_NAME + "." + AdPlugDb.KEY_NAME + " ELSE " + AdPlugDb.KEY_TITLE + " END)";
+
+        // Previous approach, title normalized by expression for every row
+        long expression = sortFolder(sqlite, folder + "trim(CASE WHEN substr(" + title + ", 1, 1) = '\"' THEN substr(" +
+                title + ", 2) ELSE " + title + " END), " + AdPlugDb.TABLE_NAME + "." + AdPlugDb.KEY_ID);
+
+        // Stored sort key, read in index order
+        long stored = sortFolder(sqlite, folder + AdPlugDb.KEY_TITLE_KEY + ", " + AdPlugDb.TABLE_NAME + "." + AdPlugDb.KEY_ID);
+        db.delete();
+        db.close();
+        Log.i(TAG, "sortkey: " + PAGE_FILES + " songs sorted by title, expression: " + expression + " ms, sort key: " + stored + " ms");
+        assertTrue(stored <= expression);
+    }
+
+    @Test
+    public void listcache() {
+        File dir = new File(mRoot, "dir");
+        assertTrue(dir.mkdir());
+        for (int i = 0; i < CACHE_FILES; i++) {
+            createFile(new File(dir, "song" + i + ".d00"));
+        }
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        InfoCallback callback = new InfoCallback(db);
+        db.setCallback(callback);
+        timeIndex(db, callback, CACHE_FILES + 1);
+
+        // First listing for each sort criterion read from database, second one from cache
+        long read = 0;
+        long cached = 0;
+        for (int sortby = IAdPlugDb.SORTBY_TITLE; sortby <= IAdPlugDb.SORTBY_LENGTH; sortby++) {
+            long start = SystemClock.elapsedRealtime();
+            db.list(dir, sortby, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+            read += SystemClock.elapsedRealtime() - start;
+            assertEquals(CACHE_FILES, callback.mListed);
+            start = SystemClock.elapsedRealtime();
+            db.list(dir, sortby, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+            cached += SystemClock.elapsedRealtime() - start;
+            assertEquals(CACHE_FILES, callback.mListed);
+        }
+        db.delete();
+        db.close();
+        int listings = IAdPlugDb.SORTBY_LENGTH - IAdPlugDb.SORTBY_TITLE + 1;
+        Log.i(TAG, "listcache: " + CACHE_FILES + " songs in folder, " + listings + " listings, database: " + read +
+                " ms, cache: " + cached + " ms");
+        assertTrue(cached <= read);
+    }
+
+    @Test
+    public void shuffle() {
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        db.delete();
+        insertDump(new AdPlugDbWriter(db), false);
+        SQLiteDatabase sqlite = db.getReadableDatabase();
+        String folder = "SELECT " + AdPlugDb.SONG_COLUMNS + " FROM " + AdPlugDb.SONG_TABLES +
+                " WHERE " + AdPlugDb.DIR_TABLE_NAME + "." + AdPlugDb.KEY_PATH + " = ?";
+
+        // Previous approach, whole folder read and shuffled in memory
+        long whole = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            List<AdPlugFile> songs = new ArrayList<>();
+            Cursor cursor = sqlite.rawQuery(folder, new String[] {DUMP_PATH});
+            while (cursor.moveToNext()) {
+                AdPlugFile song = new AdPlugFile();
+                song.name = cursor.getString(2);
+                song.title = cursor.getString(4);
+                songs.add(song);
+            }
+            cursor.close();
+            Collections.shuffle(songs);
+            assertEquals(PAGE_FILES, songs.size());
+            whole = Math.min(whole, SystemClock.elapsedRealtime() - start);
+        }
+
+        // First page in seeded order, shuffled in database
+        long page = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            Cursor cursor = sqlite.rawQuery(folder + " ORDER BY " + AdPlugDb.shuffleKey() + ", " + AdPlugDb.TABLE_NAME + "." +
+                    AdPlugDb.KEY_ID + " LIMIT ?", new String[] {DUMP_PATH, Integer.toString(i), Integer.toString(PAGE_SIZE)});
+            assertEquals(PAGE_SIZE, rows(cursor));
+            page = Math.min(page, SystemClock.elapsedRealtime() - start);
+        }
+        db.delete();
+        db.close();
+        Log.i(TAG, "shuffle: " + PAGE_FILES + " songs in folder, whole folder: " + whole + " ms, page of " + PAGE_SIZE + ": " + page + " ms");
+        assertTrue(page <= whole);
+    }
+
+    @Test
+    public void search() {
+        AdPlugDb db = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        InfoCallback callback = new InfoCallback(db);
+        db.setCallback(callback);
+        db.delete();
+        insertSongs(new AdPlugDbWriter(db));
+        SQLiteDatabase sqlite = db.getReadableDatabase();
+        String sql = "SELECT " + AdPlugDb.SONG_COLUMNS + " FROM " + AdPlugDb.SONG_TABLES + " WHERE " + AdPlugDb.TABLE_NAME +
+                ".rowid IN (SELECT docid FROM " + AdPlugDb.FTS_TABLE_NAME + " WHERE " + AdPlugDb.FTS_TABLE_NAME + " MATCH ?)";
+
+        StringBuilder results = new StringBuilder();
+        for (String query : SEARCH_QUERIES) {
+            // Previous approach, all matches in any order
+            long all = Long.MAX_VALUE;
+            int rows = 0;
+            for (int i = 0; i < RUNS; i++) {
+                long start = SystemClock.elapsedRealtime();
+                Cursor cursor = sqlite.rawQuery(sql, new String[] {"name:*" + query + "* OR title:*" + query + "* OR " +
+                        "author:*" + query + "* OR description:*" + query + "*"});
+                rows = rows(cursor);
+                all = Math.min(all, SystemClock.elapsedRealtime() - start);
+            }
+
+            // Most relevant matches, ranked and limited
+            long ranked = Long.MAX_VALUE;
+            for (int i = 0; i < RUNS; i++) {
+                long start = SystemClock.elapsedRealtime();
+                db.search(query);
+                ranked = Math.min(ranked, SystemClock.elapsedRealtime() - start);
+            }
+            assertEquals(Math.min(rows, AdPlugDb.SEARCH_LIMIT), callback.mFound);
+            results.append(", \"").append(query).append("\": ").append(rows).append(" matches, all: ").append(all)
+                    .append(" ms, ranked: ").append(ranked).append(" ms");
+        }
+        db.delete();
+        db.close();
+        Log.i(TAG, "search: " + LIST_DIRS * LIST_FILES + " rows" + results);
+    }
+
+    private static long sortFolder(SQLiteDatabase sqlite, String sql) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < RUNS; i++) {
+            long start = SystemClock.elapsedRealtime();
+            assertEquals(PAGE_FILES, rows(sqlite.rawQuery(sql, new String[] {DUMP_PATH})));
+            best = Math.min(best, SystemClock.elapsedRealtime() - start);
+        }
+        return best;
+    }
+}
@@ -1,5 +1,9 @@
 package com.omicronapplications.adplugdb;
 
+import android.database.sqlite.SQLiteStatement;
+import android.os.Handler;
+import android.os.HandlerThread;
+
 import androidx.test.platform.app.InstrumentationRegistry;
 import androidx.test.ext.junit.runners.AndroidJUnit4;
 
@@ -12,6 +16,9 @@ import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -40,8 +47,18 @@ public class AdPlugDbTest {
     }};
     private List<AdPlugFile> mActual;
     private long mCount;
+    private int mRequests;
+    private int mBatchRequests;
+    private long mOutstanding;
+    private long mCompleted;
+    private long mSkipped;
+    private boolean mAnswer = true;
+    private int mChanges;
+    private int mHits;
+    private int mMisses;
+    private int mCacheSize;
 
-    private class TestCallback implements IAdPlugDbCallback {
+    private class TestCallback implements IAdPlugDbCallback2 {
         @Override
         public void onDBServiceConnected() {
         }
@@ -59,18 +76,45 @@ public class AdPlugDbTest {
 
         @Override
         public void requestInfo(String name, long length) {
+            mRequests++;
+            if (!mAnswer) {
+                return;
+            }
             File f = new File(name);
             AdPlugFile song = mExpected.get(f.getName());
             assertNotNull(song);
             mDb.onSongInfo(song.path + File.separator + song.name, song.type, song.title, song.author, song.desc, song.length, song.songlength, song.subsongs, song.valid, song.playlist);
         }
 
+        @Override
+        public void requestInfoBatch(String[] names, long[] lengths) {
+            mBatchRequests++;
+            if (!mAnswer) {
+                return;
+            }
+            AdPlugInfoBatch batch = new AdPlugInfoBatch(names.length);
+            for (int i = 0; i < names.length; i++) {
+                File f = new File(names[i]);
+                AdPlugFile song = mExpected.get(f.getName());
+                assertNotNull(song);
+                batch.set(i, song.path + File.separator + song.name, song.type, song.title, song.author, song.desc, song.length, song.songlength, song.subsongs, song.valid, song.playlist);
+            }
+            mDb.onSongInfoBatch(batch);
+        }
+
         @Override
         public void onList(List<AdPlugFile> songs) {
             mActual = songs;
             mLatch.countDown();
         }
 
+        @Override
+        public void onListPage(String path, List<AdPlugFile> songs, int offset, long total) {
+            mActual = songs;
+            mCount = total;
+            mLatch.countDown();
+        }
+
         @Override
         public void onPlaylist(List<AdPlugFile> songs) {
             mActual = songs;
@@ -87,6 +131,22 @@ public class AdPlugDbTest {
             mLatch.countDown();
         }
 
+        @Override
+        public void onGetProgress(long outstanding, long completed, long skipped) {
+            mOutstanding = outstanding;
+            mCompleted = completed;
+            mSkipped = skipped;
+            mLatch.countDown();
+        }
+
+        @Override
+        public void onGetCacheStats(int hits, int misses, int size) {
+            mHits = hits;
+            mMisses = misses;
+            mCacheSize = size;
+            mLatch.countDown();
+        }
+
         @Override
         public void onSearch(List<AdPlugFile> songs) {
             mActual = songs;
@@ -235,230 +295,1187 @@ public class AdPlugDbTest {
     }
 
     @Test
-    public void delete() {
-        File cacheDir = getCacheDir();
-        prewait(2);
-        mDb.index(cacheDir, false);
-        await();
-
+    public void index_batch() {
         prewait(1);
         mDb.delete();
         await();
 
-        prewait(1);
-        mDb.getCount();
-        await();
-        assertEquals(0, mCount);
-    }
-
-    @Test
-    public void index_and_list() {
         File cacheDir = getCacheDir();
+        mDb.setInfoBatchSize(4);
         prewait(2);
         mDb.index(cacheDir, false);
         await();
+        assertEquals(0, mRequests);
+        assertEquals(2, mBatchRequests);
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
 
+        cacheDir = new File(getCacheDir(), "edlib");
         File[] files = cacheDir.listFiles();
         prewait(1);
         mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
         await();
         compare(files);
+    }
 
-        cacheDir = new File(getCacheDir(), "d00");
-        files = cacheDir.listFiles();
+    @Test
+    public void progress() {
         prewait(1);
-        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        mDb.delete();
         await();
-        compare(files);
 
-        cacheDir = new File(getCacheDir(), "edlib");
-        files = cacheDir.listFiles();
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
         prewait(1);
-        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        mDb.getProgress();
         await();
-        compare(files);
+        assertEquals(0, mOutstanding);
+        assertEquals(8, mCompleted);
     }
 
     @Test
-    public void list() {
-        File cacheDir = getCacheDir();
-        File[] files = cacheDir.listFiles();
+    public void list_during_index() {
         prewait(1);
-        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        mDb.delete();
         await();
-        limitedCompare(files);
 
-        cacheDir = new File(getCacheDir(), "d00");
-        files = cacheDir.listFiles();
+        // List waiting for song information when indexing starts is still completed
+        File edlib = new File(getCacheDir(), "edlib");
+        mAnswer = false;
+        mDb.list(edlib, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
         prewait(1);
-        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        mDb.index(getCacheDir(), false);
         await();
-        limitedCompare(files);
-
-        cacheDir = new File(getCacheDir(), "edlib");
-        files = cacheDir.listFiles();
         prewait(1);
-        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        for (String name : new String[] {"test.m3u", "super_nova.d00", "the_alibi.d00"}) {
+            AdPlugFile song = mExpected.get(name);
+            mDb.onSongInfo(song.path + File.separator + song.name, song.type, song.title, song.author, song.desc, song.length, song.songlength, song.subsongs, song.valid, song.playlist);
+        }
         await();
-        limitedCompare(files);
+        assertEquals(3, mActual.size());
     }
 
     @Test
-    public void reindex() {
+    public void index_unsupported() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        // Not requested, as asserted by TestCallback
         File cacheDir = getCacheDir();
-        File f = new File(cacheDir, "d00" + File.separator + "fresh.d00");
-        assertTrue("delete: fresh.d00", f.delete());
-        f = new File(cacheDir, "edlib" + File.separator + "the_alibi.d00");
-        assertTrue("delete: fresh.d00", f.delete());
+        File other = mkdir("other");
+        assertTrue(fileFromAssets(other, "playlist.m3u").renameTo(new File(other, "readme.txt")));
+        assertTrue(fileFromAssets(other, "fresh.d00").renameTo(new File(other, "fresh.rad")));
+        mDb.setSniffHeaders(true);
         prewait(2);
         mDb.index(cacheDir, false);
         await();
+        assertEquals(8, mRequests);
         prewait(1);
-        mDb.getCount();
-        await();
-        assertEquals(8, mCount);
-
-        f = fileFromAssets(new File(cacheDir, "d00"), "fresh.d00");
-        assertTrue("exists: fresh.d00", f.exists());
-        f = fileFromAssets(new File(cacheDir, "edlib"), "the_alibi.d00");
-        assertTrue("exists: the_alibi.d00", f.exists());
-        prewait(1);
-        mDb.index(cacheDir, false);
+        mDb.getProgress();
         await();
+        assertEquals(8, mCompleted);
+        assertEquals(2, mSkipped);
         prewait(1);
         mDb.getCount();
         await();
-        assertEquals(10, mCount);
+        assertEquals(13, mCount);
     }
 
     @Test
-    public void relist() {
+    public void index_metadata() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        // EdLib version 4 songs read from header, version 1 songs and playlists requested
         File cacheDir = getCacheDir();
-        File f = new File(cacheDir, "d00" + File.separator + "fresh.d00");
-        assertTrue("delete: fresh.d00", f.delete());
-        f = new File(cacheDir, "edlib" + File.separator + "the_alibi.d00");
-        assertTrue("delete: fresh.d00", f.delete());
+        mDb.setFastMetadata(true);
         prewait(2);
         mDb.index(cacheDir, false);
         await();
+        assertEquals(5, mRequests);
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
 
         cacheDir = new File(getCacheDir(), "d00");
-        File[] files = cacheDir.listFiles();
-        assertEquals(2, files.length);
         prewait(1);
         mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
         await();
-        compare(files);
+        AdPlugFile actual = null;
+        for (AdPlugFile song : mActual) {
+            if (song.name.equals("fresh.d00")) {
+                actual = song;
+            }
+        }
+        assertNotNull(actual);
+        AdPlugFile expected = mExpected.get("fresh.d00");
+        assertEquals(expected.type, actual.type);
+        assertEquals(expected.title, actual.title);
+        assertEquals(expected.author, actual.author);
+        assertEquals(expected.desc, actual.desc);
+        assertEquals(expected.subsongs, actual.subsongs);
+        assertEquals(-1, actual.songlength);
+    }
 
-        cacheDir = new File(getCacheDir(), "edlib");
-        files = cacheDir.listFiles();
-        assertEquals(2, files.length);
+    @Test
+    public void index_metadata_hsc() throws IOException {
         prewait(1);
-        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        mDb.delete();
         await();
-        compare(files);
 
-        f = fileFromAssets(new File(getCacheDir(), "d00"), "fresh.d00");
-        assertTrue("exists: fresh.d00", f.exists());
-        f = fileFromAssets(new File(getCacheDir(), "edlib"), "the_alibi.d00");
-        assertTrue("exists: the_alibi`.d00`", f.exists());
+        // One pattern, played once. Noise refers to pattern not in file, and is requested from AdPlug.
+        File hsc = mkdir("hsc");
+        byte[] song = new byte[128 * 12 + 51 + 64 * 9 * 2];
+        Arrays.fill(song, 128 * 12, 128 * 12 + 51, (byte) 0xff);
+        song[128 * 12] = 0;
+        writeFile(new File(hsc, "song.hsc"), song);
+        song[128 * 12] = 1;
+        writeFile(new File(hsc, "noise.hsc"), song);
+        mExpected.put("noise.hsc", new AdPlugFile(hsc.getAbsolutePath(), "noise.hsc", "", "", "", "", song.length, -1, -1, false, false));
 
-        cacheDir = new File(getCacheDir(), "d00");
-        files = cacheDir.listFiles();
-        assertEquals(3, files.length);
+        mDb.setFastMetadata(true);
+        mRequests = 0;
+        prewait(2);
+        mDb.index(hsc, false);
+        await();
+        assertEquals(1, mRequests);
         prewait(1);
-        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        mDb.list(hsc, IAdPlugDb.SORTBY_FILE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
         await();
-        limitedCompare(files);
+        assertEquals(2, mActual.size());
+        assertFalse(mActual.get(0).valid);
+        assertEquals("song.hsc", mActual.get(1).name);
+        assertEquals("HSC Adlib Composer / HSC-Tracker", mActual.get(1).type);
+        assertTrue(mActual.get(1).valid);
+    }
 
-        cacheDir = new File(getCacheDir(), "edlib");
-        files = cacheDir.listFiles();
-        assertEquals(3, files.length);
+    private static void writeFile(File f, byte[] bytes) throws IOException {
+        FileOutputStream fos = new FileOutputStream(f);
+        try {
+            fos.write(bytes);
+        } finally {
+            fos.close();
+        }
+    }
+
+    @Test
+    public void resume() {
         prewait(1);
-        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        mDb.delete();
         await();
-        limitedCompare(files);
+
+        // Interrupt indexing while waiting for song information
+        File cacheDir = getCacheDir();
+        mAnswer = false;
+        prewait(1);
+        mDb.index(cacheDir, false);
+        await();
+        mDb.close();
+
+        mDb = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        mDb.setCallback(mCallback);
+        mAnswer = true;
+        mRequests = 0;
+        prewait(2);
+        mDb.resume();
+        await();
+        assertEquals(8, mRequests);
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
     }
 
     @Test
-    public void playlist() {
+    public void index_update() {
+        prewait(1);
+        mDb.delete();
+        await();
+
         File cacheDir = getCacheDir();
         prewait(2);
         mDb.index(cacheDir, false);
         await();
+
+        // Song information received again replaces existing row
+        File f = new File(cacheDir, "d00" + File.separator + "fresh.d00");
+        mDb.onSongInfo(f.getAbsolutePath(), "EdLib packed (version 4)", "Updated", "Author", "", f.length(), 60000, 1, true, false);
         prewait(1);
         mDb.getCount();
         await();
         assertEquals(10, mCount);
+        prewait(1);
+        mDb.search("updated");
+        await();
+        assertEquals(1, mActual.size());
+        assertEquals("fresh.d00", mActual.get(0).name);
+    }
 
+    @Test
+    public void watch() {
         prewait(1);
-        mDb.playlist();
+        mDb.delete();
         await();
-        assertEquals(3, mActual.size());
 
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        mRequests = 0;
+
+        HandlerThread thread = new HandlerThread("AdPlugDbTest");
+        thread.start();
+        AdPlugDbWatcher watcher = new AdPlugDbWatcher(new Handler(thread.getLooper()), new AdPlugDbWatcher.IWatchCallback() {
+            @Override
+            public void onChanges(AdPlugDbWatcher.Changes changes) {
+                mChanges++;
+                mDb.update(changes);
+                mLatch.countDown();
+            }
+        });
+        watcher.watch(cacheDir);
+
+        // Move and delete reported in a single batch, moved song keeps song information
+        File edlib = new File(cacheDir, "edlib");
         prewait(1);
-        mDb.search("playlist");
+        assertTrue(new File(cacheDir, "en_lille_test.d00").renameTo(new File(edlib, "en_lille_test.d00")));
+        assertTrue(new File(cacheDir, "d00" + File.separator + "gone.d00").delete());
         await();
-        assertEquals("playlist.m3u", mActual.get(0).name);
+        watcher.unwatch();
+        thread.quit();
+        assertEquals(1, mChanges);
+        assertEquals(0, mRequests);
 
         prewait(1);
-        String before = new File(getCacheDir(), "playlist.m3u").getAbsolutePath();
-        String after = new File(getCacheDir(), "myplaylist.m3u").getAbsolutePath();
-        mDb.rename(before, after);
-        mDb.search("myplaylist");
+        mDb.getCount();
         await();
-        assertEquals(1, mActual.size());
-        assertEquals("myplaylist.m3u", mActual.get(0).name);
+        assertEquals(9, mCount);
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        AdPlugFile actual = null;
+        for (AdPlugFile song : mActual) {
+            if (song.name.equals("en_lille_test.d00")) {
+                actual = song;
+            }
+        }
+        assertNotNull(actual);
+        assertEquals(mExpected.get("en_lille_test.d00").title, actual.title);
     }
 
     @Test
-    public void add_remove() {
+    public void watch_same_name() {
         prewait(1);
         mDb.delete();
         await();
 
-        mDb.add(new File(new File(getCacheDir(), "edlib"), "super_nova.d00").getAbsolutePath(), 1758, false);
+        File cacheDir = getCacheDir();
+        File d00 = new File(cacheDir, "d00");
+        File edlib = new File(cacheDir, "edlib");
+        fileFromAssets(d00, "super_nova.d00");
+        mDb.setFastMetadata(true);
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        mDb.setFastMetadata(false);
+        mRequests = 0;
+
+        HandlerThread thread = new HandlerThread("AdPlugDbTest");
+        thread.start();
+        AdPlugDbWatcher watcher = new AdPlugDbWatcher(new Handler(thread.getLooper()), new AdPlugDbWatcher.IWatchCallback() {
+            @Override
+            public void onChanges(AdPlugDbWatcher.Changes changes) {
+                mChanges++;
+                mDb.update(changes);
+                mLatch.countDown();
+            }
+        });
+        watcher.watch(cacheDir);
+
+        // Songs with same name moved in one batch are each renamed from their own folder
         prewait(1);
-        mDb.getCount();
+        assertTrue(new File(edlib, "super_nova.d00").renameTo(new File(cacheDir, "super_nova.d00")));
+        assertTrue(new File(d00, "super_nova.d00").renameTo(new File(edlib, "super_nova.d00")));
         await();
-        assertEquals(1, mCount);
+        watcher.unwatch();
+        thread.quit();
+        assertEquals(1, mChanges);
+        assertEquals(0, mRequests);
 
-        mDb.add(new File(new File(getCacheDir(), "d00"), "gone.d00").getAbsolutePath(), 1758, false);
-        mDb.add(new File(getCacheDir().getAbsolutePath(), "super_nova.d00").getAbsolutePath(), 3272, false);
         prewait(1);
         mDb.getCount();
         await();
-        assertEquals(2, mCount);
+        assertEquals(11, mCount);
+    }
+
+    @Test
+    public void delete() {
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
 
-        mDb.remove(new File(new File(getCacheDir(), "edlib"), "super_nova.d00").getAbsolutePath());
         prewait(1);
-        mDb.getCount();
+        mDb.delete();
         await();
-        assertEquals(1, mCount);
 
-        mDb.remove("no.such.file");
         prewait(1);
         mDb.getCount();
         await();
-        assertEquals(1, mCount);
+        assertEquals(0, mCount);
     }
 
     @Test
-    public void search() {
+    public void index_and_list() {
         File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        File[] files = cacheDir.listFiles();
         prewait(1);
-        mDb.search("m3u");
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
         await();
-        assertEquals(3, mActual.size());
+        compare(files);
 
+        cacheDir = new File(getCacheDir(), "d00");
+        files = cacheDir.listFiles();
         prewait(1);
-        mDb.search("1992");
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
         await();
-        assertEquals(2, mActual.size());
+        compare(files);
 
+        cacheDir = new File(getCacheDir(), "edlib");
+        files = cacheDir.listFiles();
         prewait(1);
-        mDb.search("drax");
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
         await();
-        assertEquals(2, mActual.size());
+        compare(files);
+    }
+
+    @Test
+    public void list() {
+        File cacheDir = getCacheDir();
+        File[] files = cacheDir.listFiles();
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        limitedCompare(files);
+
+        cacheDir = new File(getCacheDir(), "d00");
+        files = cacheDir.listFiles();
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        limitedCompare(files);
+
+        cacheDir = new File(getCacheDir(), "edlib");
+        files = cacheDir.listFiles();
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        limitedCompare(files);
+    }
+
+    @Test
+    public void reindex() {
+        File cacheDir = getCacheDir();
+        File f = new File(cacheDir, "d00" + File.separator + "fresh.d00");
+        assertTrue("delete: fresh.d00", f.delete());
+        f = new File(cacheDir, "edlib" + File.separator + "the_alibi.d00");
+        assertTrue("delete: fresh.d00", f.delete());
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(8, mCount);
+
+        f = fileFromAssets(new File(cacheDir, "d00"), "fresh.d00");
+        assertTrue("exists: fresh.d00", f.exists());
+        f = fileFromAssets(new File(cacheDir, "edlib"), "the_alibi.d00");
+        assertTrue("exists: the_alibi.d00", f.exists());
+        prewait(1);
+        mDb.index(cacheDir, false);
+        await();
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+    }
+
+    @Test
+    public void reindex_removed_folder() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Songs below folder no longer on disk are removed with folder
+        File edlib = new File(cacheDir, "edlib");
+        deleteCacheDir(edlib);
+        assertTrue(edlib.delete());
+        prewait(1);
+        mDb.index(cacheDir, false);
+        await();
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(6, mCount);
+        prewait(1);
+        mDb.search("nova");
+        await();
+        assertEquals(0, mActual.size());
+        prewait(1);
+        mDb.playlist();
+        await();
+        assertEquals(2, mActual.size());
+    }
+
+    @Test
+    public void reindex_unchanged() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        mRequests = 0;
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        assertEquals(0, mRequests);
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+
+        File f = fileFromAssets(new File(cacheDir, "d00"), "super_nova.d00");
+        assertTrue("exists: super_nova.d00", f.exists());
+        mExpected.put("super_nova.d00", new AdPlugFile(new File(cacheDir, "d00").getAbsolutePath(), "super_nova.d00", "EdLib packed (version 4)", "Super Nova", "Metal & Drax (V)", "", 3272, 68956, 1, true, false));
+        mRequests = 0;
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        assertEquals(1, mRequests);
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(11, mCount);
+    }
+
+    @Test
+    public void relist() {
+        File cacheDir = getCacheDir();
+        File f = new File(cacheDir, "d00" + File.separator + "fresh.d00");
+        assertTrue("delete: fresh.d00", f.delete());
+        f = new File(cacheDir, "edlib" + File.separator + "the_alibi.d00");
+        assertTrue("delete: fresh.d00", f.delete());
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        cacheDir = new File(getCacheDir(), "d00");
+        File[] files = cacheDir.listFiles();
+        assertEquals(2, files.length);
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        compare(files);
+
+        cacheDir = new File(getCacheDir(), "edlib");
+        files = cacheDir.listFiles();
+        assertEquals(2, files.length);
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        compare(files);
+
+        f = fileFromAssets(new File(getCacheDir(), "d00"), "fresh.d00");
+        assertTrue("exists: fresh.d00", f.exists());
+        f = fileFromAssets(new File(getCacheDir(), "edlib"), "the_alibi.d00");
+        assertTrue("exists: the_alibi`.d00`", f.exists());
+
+        cacheDir = new File(getCacheDir(), "d00");
+        files = cacheDir.listFiles();
+        assertEquals(3, files.length);
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        limitedCompare(files);
+
+        cacheDir = new File(getCacheDir(), "edlib");
+        files = cacheDir.listFiles();
+        assertEquals(3, files.length);
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        limitedCompare(files);
+    }
+
+    @Test
+    public void playlist() {
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+
+        prewait(1);
+        mDb.playlist();
+        await();
+        assertEquals(3, mActual.size());
+
+        prewait(1);
+        mDb.search("playlist");
+        await();
+        assertEquals("playlist.m3u", mActual.get(0).name);
+
+        prewait(1);
+        String before = new File(getCacheDir(), "playlist.m3u").getAbsolutePath();
+        String after = new File(getCacheDir(), "myplaylist.m3u").getAbsolutePath();
+        mDb.rename(before, after);
+        mDb.search("myplaylist");
+        await();
+        assertEquals(1, mActual.size());
+        assertEquals("myplaylist.m3u", mActual.get(0).name);
+    }
+
+    @Test
+    public void rename_folder() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        mRequests = 0;
+
+        // Songs moved with folder keep song information
+        File before = new File(cacheDir, "edlib");
+        File after = new File(new File(cacheDir, "d00"), "moved");
+        assertTrue(before.renameTo(after));
+        mDb.rename(before.getAbsolutePath(), after.getAbsolutePath());
+        prewait(1);
+        mDb.list(after, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        assertEquals(0, mRequests);
+        assertEquals(3, mActual.size());
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+    }
+
+    @Test
+    public void rename_folder_replaced() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Folder renamed to path of a deleted folder replaces its songs
+        File d00 = new File(cacheDir, "d00");
+        deleteCacheDir(d00);
+        assertTrue(d00.delete());
+        prewait(1);
+        mDb.index(cacheDir, false);
+        await();
+        File edlib = new File(cacheDir, "edlib");
+        File[] files = edlib.listFiles();
+        assertTrue(edlib.renameTo(d00));
+        mDb.rename(edlib.getAbsolutePath(), d00.getAbsolutePath());
+        prewait(1);
+        mDb.list(d00, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        assertEquals(3, mActual.size());
+        for (File f : files) {
+            boolean found = false;
+            for (AdPlugFile song : mActual) {
+                found |= song.name.equals(f.getName());
+            }
+            assertTrue("missing: " + f.getName(), found);
+        }
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(6, mCount);
+    }
+
+    @Test
+    public void remove_tree() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Folder removed with all songs below
+        mDb.removeTree(new File(cacheDir, "edlib").getAbsolutePath());
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(6, mCount);
+
+        mDb.removeAll(Arrays.asList(new File(new File(cacheDir, "d00"), "fresh.d00").getAbsolutePath(),
+                new File(cacheDir, "playlist.m3u").getAbsolutePath()));
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(4, mCount);
+        prewait(1);
+        mDb.playlist();
+        await();
+        assertEquals(1, mActual.size());
+        assertEquals("songs.m3u", mActual.get(0).name);
+    }
+
+    @Test
+    public void snapshot() throws IOException {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        File file = new File(cacheDir, "snapshot.bin");
+        mDb.exportSnapshot(file.getAbsolutePath());
+        prewait(1);
+        mDb.delete();
+        await();
+        prewait(1);
+        mDb.importSnapshot(file.getAbsolutePath());
+        await();
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+        prewait(1);
+        mDb.playlist();
+        await();
+        assertEquals(2, mActual.size());
+        // Full-text index rebuilt from imported songs
+        prewait(1);
+        mDb.search("m3u");
+        await();
+        assertEquals(3, mActual.size());
+
+        // Corrupted snapshot rejected, database unchanged
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        long middle = raf.length() / 2;
+        raf.seek(middle);
+        int b = raf.read();
+        raf.seek(middle);
+        raf.write(~b);
+        raf.close();
+        mDb.importSnapshot(file.getAbsolutePath());
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+        assertTrue(file.delete());
+    }
+
+    @Test
+    public void storage_roots() {
+        File cacheDir = getCacheDir();
+        File edlib = new File(cacheDir, "edlib");
+        mDb.setStorageRoots(Collections.singletonList(edlib.getAbsolutePath()));
+        prewait(1);
+        mDb.delete();
+        await();
+
+        // Songs below storage root kept in separate shard, counted and searched with all other songs
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+        prewait(1);
+        mDb.search("m3u");
+        await();
+        assertEquals(3, mActual.size());
+        File[] files = edlib.listFiles();
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        compare(files);
+
+        // Unmounted storage root left out of queries
+        deleteCacheDir(edlib);
+        assertTrue(edlib.delete());
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(7, mCount);
+        prewait(1);
+        mDb.search("m3u");
+        await();
+        assertEquals(2, mActual.size());
+
+        prewait(1);
+        mDb.delete();
+        await();
+        mDb.setStorageRoots(Collections.<String>emptyList());
+    }
+
+    @Test
+    public void storage_roots_added() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        // Songs indexed before storage root was added moved from primary database to shard
+        File cacheDir = getCacheDir();
+        File edlib = new File(cacheDir, "edlib");
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        mDb.setStorageRoots(Collections.singletonList(edlib.getAbsolutePath()));
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+        SQLiteStatement count = mDb.getReadableDatabase().compileStatement("SELECT COUNT(*) FROM " + AdPlugDb.TABLE_NAME);
+        assertEquals(7, count.simpleQueryForLong());
+        count.close();
+        File[] moved = edlib.listFiles();
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        compare(moved);
+
+        // Snapshot holds songs of all mounted shards, imported to shard of each folder
+        prewait(1);
+        mDb.delete();
+        await();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+        File file = new File(cacheDir, "shards.snapshot");
+        mDb.exportSnapshot(file.getAbsolutePath());
+        prewait(1);
+        mDb.delete();
+        await();
+        prewait(1);
+        mDb.importSnapshot(file.getAbsolutePath());
+        await();
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(10, mCount);
+        File[] files = edlib.listFiles();
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        compare(files);
+        assertTrue(file.delete());
+
+        prewait(1);
+        mDb.delete();
+        await();
+        mDb.setStorageRoots(Collections.<String>emptyList());
+    }
+
+    @Test
+    public void dictionary() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Types and authors shared by songs in different folders are the same instances
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        AdPlugFile lille = find(mActual, "en_lille_test.d00");
+        prewait(1);
+        mDb.list(new File(cacheDir, "d00"), IAdPlugDb.SORTBY_NONE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        AdPlugFile fresh = find(mActual, "fresh.d00");
+        assertEquals("Morten Sigaard", fresh.author);
+        assertSame(lille.author, fresh.author);
+        assertSame(lille.type, fresh.type);
+
+        // Author names searchable through dictionary
+        prewait(1);
+        mDb.search("sigaard");
+        await();
+        assertEquals(2, mActual.size());
+    }
+
+    private static AdPlugFile find(List<AdPlugFile> songs, String name) {
+        for (AdPlugFile song : songs) {
+            if (song.name.equals(name)) {
+                return song;
+            }
+        }
+        fail("not found: " + name);
+        return null;
+    }
+
+    @Test
+    public void list_page() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Folders first, then songs by file name, with total count of folder
+        prewait(1);
+        mDb.listPage(cacheDir, IAdPlugDb.SORTBY_FILE, IAdPlugDb.ORDER_ASCENDING, false, 0, 2);
+        await();
+        assertEquals(4, mCount);
+        assertEquals(2, mActual.size());
+        assertEquals("d00", mActual.get(0).name);
+        assertEquals("edlib", mActual.get(1).name);
+        prewait(1);
+        mDb.listPage(cacheDir, IAdPlugDb.SORTBY_FILE, IAdPlugDb.ORDER_ASCENDING, false, 2, 2);
+        await();
+        assertEquals(2, mActual.size());
+        assertEquals("en_lille_test.d00", mActual.get(0).name);
+        assertEquals("playlist.m3u", mActual.get(1).name);
+        prewait(1);
+        mDb.listPage(cacheDir, IAdPlugDb.SORTBY_FILE, IAdPlugDb.ORDER_ASCENDING, false, 4, 2);
+        await();
+        assertEquals(0, mActual.size());
+
+        // Descending order by length, within songs of folder
+        prewait(1);
+        mDb.listPage(new File(cacheDir, "edlib"), IAdPlugDb.SORTBY_LENGTH, IAdPlugDb.ORDER_DESCENDING, true, 0, 10);
+        await();
+        assertEquals(3, mCount);
+        assertEquals("the_alibi.d00", mActual.get(0).name);
+        assertEquals("super_nova.d00", mActual.get(1).name);
+    }
+
+    @Test
+    public void list_sorted() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Title, or file name if none
+        File edlib = new File(cacheDir, "edlib");
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        assertEquals(3, mActual.size());
+        assertEquals("super_nova.d00", mActual.get(0).name);
+        assertEquals("test.m3u", mActual.get(1).name);
+        assertEquals("the_alibi.d00", mActual.get(2).name);
+
+        // Extension, then file name
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_TYPE, IAdPlugDb.ORDER_DESCENDING, false, false, false);
+        await();
+        assertEquals("test.m3u", mActual.get(0).name);
+        assertEquals("the_alibi.d00", mActual.get(1).name);
+        assertEquals("super_nova.d00", mActual.get(2).name);
+
+        // Folders first in descending order too
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_DESCENDING, false, false, false);
+        await();
+        assertEquals(4, mActual.size());
+        assertEquals("edlib", mActual.get(0).name);
+        assertEquals("d00", mActual.get(1).name);
+        assertEquals("playlist.m3u", mActual.get(2).name);
+        assertEquals("en_lille_test.d00", mActual.get(3).name);
+
+        // Sort keys follow renamed file
+        File before = new File(edlib, "test.m3u");
+        File after = new File(edlib, "a.m3u");
+        assertTrue(before.renameTo(after));
+        mDb.rename(before.getAbsolutePath(), after.getAbsolutePath());
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, false, false, false);
+        await();
+        assertEquals("a.m3u", mActual.get(0).name);
+        assertEquals("super_nova.d00", mActual.get(1).name);
+        assertTrue(after.renameTo(before));
+    }
+
+    @Test
+    public void list_cache() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Same listing twice, second one from cache
+        File edlib = new File(cacheDir, "edlib");
+        prewait(1);
+        mDb.getCacheStats();
+        await();
+        int hits = mHits;
+        int misses = mMisses;
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        assertEquals(3, mActual.size());
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        assertEquals(3, mActual.size());
+        prewait(1);
+        mDb.getCacheStats();
+        await();
+        assertEquals(hits + 1, mHits);
+        assertEquals(misses + 1, mMisses);
+
+        // Listing of folder invalidated when song in folder is removed
+        mDb.remove(new File(edlib, "test.m3u").getAbsolutePath());
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        assertEquals(2, mActual.size());
+        prewait(1);
+        mDb.getCacheStats();
+        await();
+        assertEquals(hits + 1, mHits);
+        assertEquals(misses + 2, mMisses);
+
+        // Listings of other folders kept
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        mDb.rename(new File(edlib, "super_nova.d00").getAbsolutePath(), new File(edlib, "nova.d00").getAbsolutePath());
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        prewait(1);
+        mDb.getCacheStats();
+        await();
+        assertEquals(hits + 2, mHits);
+        assertEquals(misses + 3, mMisses);
+
+        // Listings of folder removed from disk invalidated when parent folder is indexed
+        prewait(1);
+        mDb.list(edlib, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        deleteCacheDir(edlib);
+        assertTrue(edlib.delete());
+        prewait(1);
+        mDb.index(cacheDir, false);
+        await();
+        prewait(1);
+        mDb.getCacheStats();
+        await();
+        assertEquals(0, mCacheSize);
+    }
+
+    @Test
+    public void list_shuffle() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Same seed, same order, whether listed whole or in pages
+        mDb.setShuffleSeed(42);
+        prewait(1);
+        mDb.listPage(cacheDir, IAdPlugDb.SORTBY_SHUFFLE, IAdPlugDb.ORDER_ASCENDING, false, 0, 10);
+        await();
+        List<AdPlugFile> shuffled = mActual;
+        assertEquals(4, shuffled.size());
+        assertTrue(shuffled.get(0).dir);
+        assertTrue(shuffled.get(1).dir);
+        prewait(1);
+        mDb.listPage(cacheDir, IAdPlugDb.SORTBY_SHUFFLE, IAdPlugDb.ORDER_ASCENDING, false, 2, 2);
+        await();
+        assertEquals(shuffled.subList(2, 4), mActual);
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_SHUFFLE, IAdPlugDb.ORDER_ASCENDING, true, false, false);
+        await();
+        assertEquals(shuffled, mActual);
+        prewait(1);
+        mDb.list(cacheDir, IAdPlugDb.SORTBY_TITLE, IAdPlugDb.ORDER_ASCENDING, true, false, true);
+        await();
+        assertEquals(shuffled, mActual);
+
+        // Order kept across sessions
+        mDb.close();
+        mDb = new AdPlugDb(InstrumentationRegistry.getInstrumentation().getContext());
+        mDb.setCallback(mCallback);
+        mDb.setShuffleSeed(42);
+        prewait(1);
+        mDb.listPage(cacheDir, IAdPlugDb.SORTBY_SHUFFLE, IAdPlugDb.ORDER_ASCENDING, false, 2, 2);
+        await();
+        assertEquals(shuffled.subList(2, 4), mActual);
+    }
+
+    @Test
+    public void add_remove() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        mDb.add(new File(new File(getCacheDir(), "edlib"), "super_nova.d00").getAbsolutePath(), 1758, false);
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(1, mCount);
+
+        mDb.add(new File(new File(getCacheDir(), "d00"), "gone.d00").getAbsolutePath(), 1758, false);
+        mDb.add(new File(getCacheDir().getAbsolutePath(), "super_nova.d00").getAbsolutePath(), 3272, false);
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(2, mCount);
+
+        mDb.remove(new File(new File(getCacheDir(), "edlib"), "super_nova.d00").getAbsolutePath());
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(1, mCount);
+
+        mDb.remove("no.such.file");
+        prewait(1);
+        mDb.getCount();
+        await();
+        assertEquals(1, mCount);
+    }
+
+    @Test
+    public void search() {
+        File cacheDir = getCacheDir();
+        prewait(1);
+        mDb.search("m3u");
+        await();
+        assertEquals(3, mActual.size());
+
+        prewait(1);
+        mDb.search("1992");
+        await();
+        assertEquals(2, mActual.size());
+
+        prewait(1);
+        mDb.search("drax");
+        await();
+        assertEquals(2, mActual.size());
+    }
+
+    @Test
+    public void search_folder() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Songs found by name of their folder, folder itself ranked first
+        prewait(1);
+        mDb.search("edlib");
+        await();
+        assertEquals(4, mActual.size());
+        assertEquals("edlib", mActual.get(0).name);
+
+        // Songs found by new folder path once folder is moved
+        File before = new File(cacheDir, "edlib");
+        File after = new File(new File(cacheDir, "d00"), "moved");
+        assertTrue(before.renameTo(after));
+        mDb.rename(before.getAbsolutePath(), after.getAbsolutePath());
+        prewait(1);
+        mDb.search("edlib");
+        await();
+        assertEquals(0, mActual.size());
+        prewait(1);
+        mDb.search("moved");
+        await();
+        assertEquals(4, mActual.size());
+    }
+
+    @Test
+    public void search_ranked() {
+        prewait(1);
+        mDb.delete();
+        await();
+
+        File cacheDir = getCacheDir();
+        prewait(2);
+        mDb.index(cacheDir, false);
+        await();
+
+        // Match in author ranked above match in description
+        prewait(1);
+        mDb.search("drax");
+        await();
+        assertEquals(2, mActual.size());
+        assertEquals("super_nova.d00", mActual.get(0).name);
+        assertEquals("gone.d00", mActual.get(1).name);
+
+        // Every term matched as prefix
+        prewait(1);
+        mDb.search("su NOV");
+        await();
+        assertEquals(1, mActual.size());
+        assertEquals("super_nova.d00", mActual.get(0).name);
+
+        // Query syntax characters are not passed on
+        prewait(1);
+        mDb.search("\"drax* -");
+        await();
+        assertEquals(2, mActual.size());
+        prewait(1);
+        mDb.search("*");
+        await();
+        assertEquals(0, mActual.size());
     }
 }
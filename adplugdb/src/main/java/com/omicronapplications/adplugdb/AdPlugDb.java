@@ -1,18 +1,27 @@
 package com.omicronapplications.adplugdb;
 
-import android.content.ContentValues;
 import android.content.Context;
 import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
+import android.os.Build;
 import android.util.Log;
 
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
-import java.util.Comparator;
-import java.util.Iterator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.locks.ReentrantLock;
 
 import com.omicronapplications.adplugdb.IAdPlugDbCallback.dbStatus;
@@ -21,21 +30,88 @@ import static com.omicronapplications.adplugdb.IAdPlugDbCallback.dbStatus.*;
 
 public class AdPlugDb extends SQLiteOpenHelper {
     private static final String TAG = "AdPlugDb";
-    private static final String DB_NAME = "AdPlugDb";
-    private static final String TABLE_NAME = "adplug";
-    private static final String KEY_PATH = "path";
-    private static final String KEY_NAME = "name";
-    private static final String KEY_TYPE = "type";
-    private static final String KEY_TITLE = "title";
-    private static final String KEY_AUTHOR = "author";
-    private static final String KEY_DESC = "description";
-    private static final String KEY_LENGTH = "length";
-    private static final String KEY_SONGLENGTH = "songlength";
-    private static final String KEY_SUBSONGS = "subsongs";
-    private static final String KEY_VALID = "valid";
-    private static final String KEY_DIR = "dir";
-    private static final String KEY_PLAYLIST = "playlist";
-    private static final int DB_VERSION = 1;
+    static final String DB_NAME = "AdPlugDb";
+    static final String TABLE_NAME = "adplug";
+    static final String FTS_TABLE_NAME = "adplug_fts";
+    static final String KEY_ID = "id";
+    static final String KEY_PATH = "path";
+    static final String KEY_DIR_ID = "dir_id";
+    static final String KEY_PARENT_ID = "parent_id";
+    static final String KEY_NAME = "name";
+    static final String KEY_TYPE = "type";
+    static final String KEY_TITLE = "title";
+    static final String KEY_AUTHOR = "author";
+    static final String KEY_DESC = "description";
+    static final String KEY_LENGTH = "length";
+    static final String KEY_SONGLENGTH = "songlength";
+    static final String KEY_SUBSONGS = "subsongs";
+    static final String KEY_VALID = "valid";
+    static final String KEY_DIR = "dir";
+    static final String KEY_PLAYLIST = "playlist";
+    static final String KEY_MODIFIED = "modified";
+    static final String KEY_SIZE = "size";
+    static final String KEY_KIND = "kind";
+    static final String KEY_TYPE_ID = "type_id";
+    static final String KEY_AUTHOR_ID = "author_id";
+    // Normalized sort keys, see AdPlugDbSortKeys
+    static final String KEY_NAME_KEY = "name_key";
+    static final String KEY_TITLE_KEY = "title_key";
+    static final String KEY_AUTHOR_KEY = "author_key";
+    static final String KEY_EXTENSION = "extension";
+    // Song types and authors stored once, and referred to by id
+    static final String TYPE_TABLE_NAME = "types";
+    static final String AUTHOR_TABLE_NAME = "authors";
+    // Song table with author names and folder paths, read by full-text index
+    static final String CONTENT_VIEW_NAME = "adplug_content";
+    static final String DIR_TABLE_NAME = "directories";
+    // Songs refer to their folder by id, folder path is joined from directories table
+    static final String SONG_TABLES = TABLE_NAME + " JOIN " + DIR_TABLE_NAME +
+            " ON " + TABLE_NAME + "." + KEY_DIR_ID + " = " + DIR_TABLE_NAME + "." + KEY_ID;
+    static final String SONG_COLUMNS = TABLE_NAME + ".rowid, " + DIR_TABLE_NAME + "." + KEY_PATH + ", " +
+            TABLE_NAME + "." + KEY_NAME + ", " + KEY_TYPE_ID + ", " + KEY_TITLE + ", " + KEY_AUTHOR_ID + ", " +
+            KEY_DESC + ", " + KEY_LENGTH + ", " + KEY_SONGLENGTH + ", " + KEY_SUBSONGS + ", " + KEY_VALID + ", " +
+            KEY_DIR + ", " + KEY_PLAYLIST;
+    static final String FTS_COLUMNS = KEY_NAME + ", " + KEY_TITLE + ", " + KEY_AUTHOR + ", " + KEY_DESC + ", " + KEY_PATH;
+    static final String JOURNAL_TABLE_NAME = "journal";
+    private static final String SQL_SONGS = "SELECT " + SONG_COLUMNS + " FROM " + SONG_TABLES;
+    private static final String SQL_PLAYLISTS = SQL_SONGS + " WHERE " + KEY_PLAYLIST + " = ?";
+    // Full-text matches with relevance information, see AdPlugDbSearch
+    private static final String SQL_SEARCH = "SELECT docid, matchinfo(" + FTS_TABLE_NAME + ", 'pcx') FROM " +
+            FTS_TABLE_NAME + " WHERE " + FTS_TABLE_NAME + " MATCH ?";
+    // Prefix lengths indexed by full-text index, for short search terms
+    private static final String FTS_PREFIX = "2,3";
+    static final int SEARCH_LIMIT = 200;
+    private static final String SQL_HAS_PATH = "SELECT " + TABLE_NAME + ".rowid FROM " + SONG_TABLES +
+            " WHERE " + DIR_TABLE_NAME + "." + KEY_PATH + " = ? LIMIT 1";
+    private static final String SQL_COUNT = "SELECT COUNT(*) FROM " + TABLE_NAME;
+    private static final String SQL_DIRECTORIES = "SELECT " + KEY_PATH + ", " + KEY_MODIFIED + " FROM " + DIR_TABLE_NAME +
+            " WHERE " + KEY_MODIFIED + " != 0";
+    // Songs and folders in folder and all folders below, with fingerprints
+    private static final String TREE_WHERE = " WHERE (" + DIR_TABLE_NAME + "." + KEY_PATH + " = ? OR (" +
+            DIR_TABLE_NAME + "." + KEY_PATH + " > ? AND " + DIR_TABLE_NAME + "." + KEY_PATH + " < ?))";
+    private static final String SQL_TREE = "SELECT " + SONG_COLUMNS + ", " + TABLE_NAME + "." + KEY_MODIFIED + ", " +
+            KEY_SIZE + " FROM " + SONG_TABLES + TREE_WHERE;
+    private static final String SQL_TREE_COUNT = "SELECT COUNT(*) FROM " + SONG_TABLES + TREE_WHERE;
+    private static final String SQL_TREE_DIRECTORIES = "SELECT " + KEY_PATH + ", " + KEY_MODIFIED + " FROM " + DIR_TABLE_NAME +
+            TREE_WHERE + " AND " + KEY_MODIFIED + " != 0";
+    private static final String SQL_SUBDIRECTORIES = "SELECT " + DIR_TABLE_NAME + "." + KEY_PATH + ", " +
+            TABLE_NAME + "." + KEY_NAME + " FROM " + SONG_TABLES + " WHERE " + KEY_DIR + " = 1";
+    private static final String SQL_JOURNAL = "SELECT " + KEY_KIND + ", " + KEY_PATH + ", " + KEY_LENGTH +
+            " FROM " + JOURNAL_TABLE_NAME;
+    private static final String SQL_FINGERPRINTS = "SELECT " + TABLE_NAME + "." + KEY_NAME + ", " +
+            TABLE_NAME + "." + KEY_MODIFIED + ", " + KEY_SIZE + " FROM " + SONG_TABLES +
+            " WHERE " + DIR_TABLE_NAME + "." + KEY_PATH + " = ? AND " + KEY_DIR + " = 0";
+    // Unsupported files, left out if hidden
+    private static final String SQL_HIDE = " AND NOT (" + KEY_VALID + " = 0 AND " + KEY_DIR + " = 0 AND " + KEY_PLAYLIST + " = 0)";
+    static final int JOURNAL_DIR = 0;
+    static final int JOURNAL_SONG = 1;
+    static final int DB_VERSION = 10;
+    private static final long MODIFIED_RESOLUTION = 2000; // ms
+    private static final long SHUFFLE_MASK = 0xffffffffL;
+    // Seed bound after folder path, see folderArgs()
+    private static final String SHUFFLE_SEED = ":seed";
+    private static final long SHUFFLE_MULTIPLIER1 = 0x5bd1e995L;
+    private static final long SHUFFLE_MULTIPLIER2 = 0x45d9f3bL;
     private static final String[] ALLPLAYERS = {
             "hsc", "sng", "imf", "wlf", "adlib", "a2m", "sng", "amd", "bam", "cmf",
             "d00", "dfm", "hsp", "ksm", "mad", "mus", "ims", "mdi", "mid", "sci",
@@ -47,58 +123,627 @@ public class AdPlugDb extends SQLiteOpenHelper {
     private IAdPlugDbCallback mCallback;
     private IAdPlugDbCallback.dbStatus mStatus;
     private String mPath;
-    private boolean mOnList;
     private boolean mHide;
-    private boolean mRandom;
     private int mSortBy;
     private int mOrder;
-    private List<String> mListSongs;
-    private List<String> mIndexSongs;
+    private int mOffset;
+    private int mLimit;
+    private long mShuffleSeed;
+    private final AdPlugDbTracker mTracker;
+    private final AdPlugDbScanner mScanner;
+    private final AdPlugDbClassifier mClassifier;
+    private final AdPlugDbMetadata mMetadata;
+    private boolean mFastMetadata;
+    private final AdPlugDbWriter mWriter;
+    private final AdPlugDbStatements mStatements;
+    private final AdPlugDbShards mShards;
+    private final AdPlugDbListCache mListCache;
+    private Map<String, Long> mIndexDirs;
+    private String[] mRequestNames;
+    private long[] mRequestLengths;
+    private int mRequests;
+    private boolean mResumed;
+    private List<String> mAddedRoots;
 
     AdPlugDb(Context context) {
         super(context, DB_NAME, null, DB_VERSION);
+        // Queries run on pooled reader connections, concurrently with single writer connection
+        setWriteAheadLoggingEnabled(true);
         mCallback = null;
         mStatus = UNINITIALIZED;
         mPath = null;
-        mOnList = false;
         mHide = false;
-        mRandom = false;
         mSortBy = IAdPlugDb.SORTBY_NONE;
         mOrder = IAdPlugDb.ORDER_ASCENDING;
-        mListSongs = new ArrayList<>();
-        mIndexSongs = new ArrayList<>();
+        mOffset = 0;
+        mLimit = 0;
+        mShuffleSeed = 0;
+        mTracker = new AdPlugDbTracker();
+        mScanner = new AdPlugDbScanner();
+        mClassifier = new AdPlugDbClassifier(ALLPLAYERS);
+        mMetadata = new AdPlugDbMetadata();
+        mFastMetadata = false;
+        mWriter = new AdPlugDbWriter(this);
+        mStatements = new AdPlugDbStatements(this);
+        mShards = new AdPlugDbShards(context, this, mWriter, mStatements);
+        // Songs below storage roots are moved out of primary database when resuming
+        mAddedRoots = mShards.setRoots(findStorageRoots(context));
+        mListCache = new AdPlugDbListCache(AdPlugDbListCache.MAX_SONGS);
+        mIndexDirs = new HashMap<>();
+        mRequestNames = null;
+        mRequestLengths = null;
+        mRequests = 0;
+        mResumed = false;
+    }
+
+    @Override
+    public void onConfigure(SQLiteDatabase db) {
+        // Keep prepared statements for all query shapes used on each connection, see AdPlugDbStatements
+        db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+    }
+
+    @Override
+    public synchronized void close() {
+        // Pending changes committed before closing, rather than by deadline on a closed database
+        mShards.flush();
+        mShards.close();
+        mStatements.close();
+        super.close();
     }
 
     @Override
     public void onCreate(SQLiteDatabase db) {
-        String sql = "CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(" +
-                KEY_PATH + " TEXT, " +
+        createTables(db);
+    }
+
+    static void createTables(SQLiteDatabase db) {
+        String sql = "CREATE TABLE " + TABLE_NAME + " (" +
+                KEY_ID + " INTEGER PRIMARY KEY, " +
+                KEY_DIR_ID + " INTEGER, " +
                 KEY_NAME + " TEXT, " +
-                KEY_TYPE + " TEXT, " +
+                KEY_TYPE_ID + " INTEGER, " +
                 KEY_TITLE + " TEXT, " +
-                KEY_AUTHOR + " TEXT, " +
+                KEY_AUTHOR_ID + " INTEGER, " +
                 KEY_DESC + " TEXT, " +
                 KEY_LENGTH + " INTEGER, " +
                 KEY_SONGLENGTH + " INTEGER, " +
                 KEY_SUBSONGS + " INTEGER, " +
                 KEY_VALID + " INTEGER, " +
                 KEY_DIR + " INTEGER, " +
-                KEY_PLAYLIST + " INTEGER " +
+                KEY_PLAYLIST + " INTEGER, " +
+                KEY_MODIFIED + " INTEGER, " +
+                KEY_SIZE + " INTEGER, " +
+                KEY_NAME_KEY + " TEXT, " +
+                KEY_TITLE_KEY + " TEXT, " +
+                KEY_AUTHOR_KEY + " TEXT, " +
+                KEY_EXTENSION + " TEXT" +
+                ")";
+        String dirSql = "CREATE TABLE " + DIR_TABLE_NAME + " (" +
+                KEY_ID + " INTEGER PRIMARY KEY, " +
+                KEY_PARENT_ID + " INTEGER, " +
+                KEY_NAME + " TEXT, " +
+                KEY_PATH + " TEXT, " +
+                KEY_MODIFIED + " INTEGER" +
+                ")";
+        String typeSql = "CREATE TABLE " + TYPE_TABLE_NAME + " (" +
+                KEY_ID + " INTEGER PRIMARY KEY, " +
+                KEY_NAME + " TEXT" +
+                ")";
+        String authorSql = "CREATE TABLE " + AUTHOR_TABLE_NAME + " (" +
+                KEY_ID + " INTEGER PRIMARY KEY, " +
+                KEY_NAME + " TEXT" +
+                ")";
+        String journalSql = "CREATE TABLE " + JOURNAL_TABLE_NAME + " (" +
+                KEY_KIND + " INTEGER, " +
+                KEY_PATH + " TEXT, " +
+                KEY_LENGTH + " INTEGER, " +
+                "PRIMARY KEY (" + KEY_KIND + ", " + KEY_PATH + ")" +
                 ")";
         try{
             db.execSQL(sql);
+            db.execSQL(dirSql);
+            db.execSQL(typeSql);
+            db.execSQL(authorSql);
+            createIndexes(db);
+            db.execSQL(journalSql);
         } catch (android.database.SQLException e) {
             Log.e(TAG, "onCreate: SQLException: " + e.getMessage());
         }
     }
 
+    // Indexes for lookups by folder, and full-text index kept in sync with song table by triggers
+    private static void createIndexes(SQLiteDatabase db) {
+        db.execSQL("CREATE UNIQUE INDEX " + DIR_TABLE_NAME + "_" + KEY_PATH + " ON " + DIR_TABLE_NAME + " (" + KEY_PATH + ")");
+        db.execSQL("CREATE INDEX " + DIR_TABLE_NAME + "_" + KEY_PARENT_ID + " ON " + DIR_TABLE_NAME + " (" + KEY_PARENT_ID + ")");
+        db.execSQL("CREATE UNIQUE INDEX " + TYPE_TABLE_NAME + "_" + KEY_NAME + " ON " + TYPE_TABLE_NAME + " (" + KEY_NAME + ")");
+        db.execSQL("CREATE UNIQUE INDEX " + AUTHOR_TABLE_NAME + "_" + KEY_NAME + " ON " + AUTHOR_TABLE_NAME + " (" + KEY_NAME + ")");
+        db.execSQL("CREATE UNIQUE INDEX " + TABLE_NAME + "_" + KEY_DIR_ID + " ON " + TABLE_NAME + " (" + KEY_DIR_ID + ", " + KEY_NAME + ")");
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_" + KEY_DIR + " ON " + TABLE_NAME + " (" + KEY_DIR + ")");
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_" + KEY_PLAYLIST + " ON " + TABLE_NAME + " (" + KEY_PLAYLIST + ")");
+        createSortIndex(db, KEY_NAME_KEY, KEY_NAME_KEY);
+        createSortIndex(db, KEY_TITLE_KEY, KEY_TITLE_KEY);
+        createSortIndex(db, KEY_AUTHOR_KEY, KEY_AUTHOR_KEY);
+        createSortIndex(db, KEY_EXTENSION, KEY_EXTENSION + ", " + KEY_NAME_KEY);
+        createSortIndex(db, KEY_SONGLENGTH, KEY_SONGLENGTH + ", " + KEY_NAME_KEY);
+        db.execSQL("CREATE VIEW " + CONTENT_VIEW_NAME + " AS SELECT " + TABLE_NAME + "." + KEY_ID + " AS rowid, " +
+                TABLE_NAME + "." + KEY_NAME + " AS " + KEY_NAME + ", " + KEY_TITLE + ", " +
+                AUTHOR_TABLE_NAME + "." + KEY_NAME + " AS " + KEY_AUTHOR + ", " + KEY_DESC + ", " +
+                DIR_TABLE_NAME + "." + KEY_PATH + " AS " + KEY_PATH + " FROM " + TABLE_NAME +
+                " LEFT JOIN " + AUTHOR_TABLE_NAME + " ON " + TABLE_NAME + "." + KEY_AUTHOR_ID + " = " + AUTHOR_TABLE_NAME + "." + KEY_ID +
+                " LEFT JOIN " + DIR_TABLE_NAME + " ON " + TABLE_NAME + "." + KEY_DIR_ID + " = " + DIR_TABLE_NAME + "." + KEY_ID);
+        db.execSQL("CREATE VIRTUAL TABLE " + FTS_TABLE_NAME + " USING fts4(content=\"" + CONTENT_VIEW_NAME + "\", " + FTS_COLUMNS +
+                ", prefix=\"" + FTS_PREFIX + "\")");
+        createFtsTriggers(db);
+    }
+
+    static void createFtsTriggers(SQLiteDatabase db) {
+        String author = "(SELECT " + KEY_NAME + " FROM " + AUTHOR_TABLE_NAME + " WHERE " + KEY_ID + " = new." + KEY_AUTHOR_ID + ")";
+        String path = "(SELECT " + KEY_PATH + " FROM " + DIR_TABLE_NAME + " WHERE " + KEY_ID + " = new." + KEY_DIR_ID + ")";
+        String columns = KEY_DIR_ID + ", " + KEY_NAME + ", " + KEY_TITLE + ", " + KEY_AUTHOR_ID + ", " + KEY_DESC;
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_bu BEFORE UPDATE OF " + columns + " ON " + TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_bd BEFORE DELETE ON " + TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = old.rowid; END");
+        // Rows replaced by insert are deleted without delete triggers
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_bi BEFORE INSERT ON " + TABLE_NAME + " BEGIN " +
+                "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid = new.rowid; END");
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_au AFTER UPDATE OF " + columns + " ON " + TABLE_NAME + " BEGIN " +
+                "INSERT INTO " + FTS_TABLE_NAME + " (docid, " + FTS_COLUMNS + ") VALUES (new.rowid, new." + KEY_NAME + ", " +
+                "new." + KEY_TITLE + ", " + author + ", new." + KEY_DESC + ", " + path + "); END");
+        db.execSQL("CREATE TRIGGER " + TABLE_NAME + "_ai AFTER INSERT ON " + TABLE_NAME + " BEGIN " +
+                "INSERT INTO " + FTS_TABLE_NAME + " (docid, " + FTS_COLUMNS + ") VALUES (new.rowid, new." + KEY_NAME + ", " +
+                "new." + KEY_TITLE + ", " + author + ", new." + KEY_DESC + ", " + path + "); END");
+    }
+
+    // Full-text index left to be rebuilt once after bulk changes, see rebuildFts()
+    static void dropFtsTriggers(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_bu");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_bd");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_bi");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_au");
+        db.execSQL("DROP TRIGGER IF EXISTS " + TABLE_NAME + "_ai");
+    }
+
+    static void rebuildFts(SQLiteDatabase db) {
+        db.execSQL("INSERT INTO " + FTS_TABLE_NAME + " (" + FTS_TABLE_NAME + ") VALUES ('rebuild')");
+        createFtsTriggers(db);
+    }
+
+    // Songs of folder in sort order, folders first, read in index order when ascending
+    private static void createSortIndex(SQLiteDatabase db, String name, String columns) {
+        db.execSQL("CREATE INDEX " + TABLE_NAME + "_" + name + " ON " + TABLE_NAME + " (" + KEY_DIR_ID + ", " +
+                KEY_DIR + " DESC, " + columns + ")");
+    }
+
     @Override
-    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {}
+    public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+        upgradeTables(db, oldVersion);
+    }
+
+    static void upgradeTables(SQLiteDatabase db, int oldVersion) {
+        try {
+            if (oldVersion < 2) {
+                upgradeToVersion2(db);
+            }
+            if (oldVersion < 3) {
+                upgradeToVersion3(db);
+            }
+            if (oldVersion < 4) {
+                upgradeToVersion4(db);
+            }
+            if (oldVersion < 5) {
+                upgradeToVersion5(db);
+            }
+            if (oldVersion < 6) {
+                upgradeToVersion6(db);
+            }
+            if (oldVersion < 7) {
+                upgradeToVersion7(db);
+            }
+            if (oldVersion < 8) {
+                upgradeToVersion8(db);
+            }
+            if (oldVersion < 9) {
+                upgradeToVersion9(db);
+            }
+            if (oldVersion < 10) {
+                upgradeToVersion10(db);
+            }
+        } catch (android.database.SQLException e) {
+            // Database only caches file system contents, start over if migration fails
+            Log.e(TAG, "onUpgrade: SQLException: " + e.getMessage());
+            db.execSQL("DROP TABLE IF EXISTS " + FTS_TABLE_NAME);
+            db.execSQL("DROP VIEW IF EXISTS " + CONTENT_VIEW_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME + "_v3");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME + "_v4");
+            db.execSQL("DROP TABLE IF EXISTS " + TABLE_NAME + "_v6");
+            db.execSQL("DROP TABLE IF EXISTS " + DIR_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + DIR_TABLE_NAME + "_v4");
+            db.execSQL("DROP TABLE IF EXISTS " + JOURNAL_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + TYPE_TABLE_NAME);
+            db.execSQL("DROP TABLE IF EXISTS " + AUTHOR_TABLE_NAME);
+            createTables(db);
+        }
+    }
+
+    // Version 2: file fingerprint columns, and directories table
+    private static void upgradeToVersion2(SQLiteDatabase db) {
+        String columns = KEY_PATH + ", " + KEY_NAME + ", " + KEY_TYPE + ", " + KEY_TITLE + ", " +
+                KEY_AUTHOR + ", " + KEY_DESC + ", " + KEY_LENGTH + ", " + KEY_SONGLENGTH + ", " +
+                KEY_SUBSONGS + ", " + KEY_VALID + ", " + KEY_DIR + ", " + KEY_PLAYLIST;
+        // FTS tables cannot be altered, copy rows to new table with unknown (zero) fingerprints
+        db.execSQL("ALTER TABLE " + TABLE_NAME + " RENAME TO " + TABLE_NAME + "_v1");
+        db.execSQL("CREATE VIRTUAL TABLE " + TABLE_NAME + " USING fts4(" +
+                KEY_PATH + " TEXT, " + KEY_NAME + " TEXT, " + KEY_TYPE + " TEXT, " +
+                KEY_TITLE + " TEXT, " + KEY_AUTHOR + " TEXT, " + KEY_DESC + " TEXT, " +
+                KEY_LENGTH + " INTEGER, " + KEY_SONGLENGTH + " INTEGER, " + KEY_SUBSONGS + " INTEGER, " +
+                KEY_VALID + " INTEGER, " + KEY_DIR + " INTEGER, " + KEY_PLAYLIST + " INTEGER, " +
+                KEY_MODIFIED + " INTEGER, " + KEY_SIZE + " INTEGER)");
+        db.execSQL("INSERT INTO " + TABLE_NAME + " (" + columns + ", " + KEY_MODIFIED + ", " + KEY_SIZE + ")" +
+                " SELECT " + columns + ", 0, 0 FROM " + TABLE_NAME + "_v1");
+        db.execSQL("DROP TABLE " + TABLE_NAME + "_v1");
+        db.execSQL("CREATE TABLE " + DIR_TABLE_NAME + " (" +
+                KEY_PATH + " TEXT PRIMARY KEY, " + KEY_MODIFIED + " INTEGER)");
+    }
+
+    // Version 3: index journal
+    private static void upgradeToVersion3(SQLiteDatabase db) {
+        db.execSQL("CREATE TABLE " + JOURNAL_TABLE_NAME + " (" +
+                KEY_KIND + " INTEGER, " + KEY_PATH + " TEXT, " + KEY_LENGTH + " INTEGER, " +
+                "PRIMARY KEY (" + KEY_KIND + ", " + KEY_PATH + "))");
+    }
+
+    // Version 4: song table with indexes, and external content full-text index
+    private static void upgradeToVersion4(SQLiteDatabase db) {
+        String columns = "path, name, type, title, author, description, length, songlength, subsongs, valid, dir, playlist, modified, size";
+        db.execSQL("ALTER TABLE adplug RENAME TO adplug_v3");
+        db.execSQL("CREATE TABLE adplug (id INTEGER PRIMARY KEY, path TEXT, name TEXT, type TEXT, " +
+                "title TEXT, author TEXT, description TEXT, length INTEGER, songlength INTEGER, subsongs INTEGER, " +
+                "valid INTEGER, dir INTEGER, playlist INTEGER, modified INTEGER, size INTEGER)");
+        db.execSQL("INSERT INTO adplug (" + columns + ") SELECT " + columns + " FROM adplug_v3");
+        db.execSQL("DROP TABLE adplug_v3");
+        db.execSQL("CREATE INDEX adplug_path ON adplug (path, name)");
+        db.execSQL("CREATE INDEX adplug_dir ON adplug (dir)");
+        db.execSQL("CREATE INDEX adplug_playlist ON adplug (playlist)");
+        db.execSQL("CREATE VIRTUAL TABLE adplug_fts USING fts4(content=\"adplug\", path, name, title, author, description)");
+        db.execSQL("INSERT INTO adplug_fts (adplug_fts) VALUES ('rebuild')");
+        db.execSQL("CREATE TRIGGER adplug_bu BEFORE UPDATE OF path, name, title, author, description ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_bd BEFORE DELETE ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_au AFTER UPDATE OF path, name, title, author, description ON adplug BEGIN " +
+                "INSERT INTO adplug_fts (docid, path, name, title, author, description) " +
+                "VALUES (new.rowid, new.path, new.name, new.title, new.author, new.description); END");
+        db.execSQL("CREATE TRIGGER adplug_ai AFTER INSERT ON adplug BEGIN " +
+                "INSERT INTO adplug_fts (docid, path, name, title, author, description) " +
+                "VALUES (new.rowid, new.path, new.name, new.title, new.author, new.description); END");
+    }
+
+    // Version 5: folder tree table, songs referring to folder by id
+    private static void upgradeToVersion5(SQLiteDatabase db) {
+        String columns = "name, type, title, author, description, length, songlength, subsongs, valid, dir, playlist, modified, size";
+        db.execSQL("ALTER TABLE directories RENAME TO directories_v4");
+        db.execSQL("CREATE TABLE directories (id INTEGER PRIMARY KEY, parent_id INTEGER, name TEXT, path TEXT, modified INTEGER)");
+        db.execSQL("CREATE UNIQUE INDEX directories_path ON directories (path)");
+        db.execSQL("CREATE INDEX directories_parent_id ON directories (parent_id)");
+        db.execSQL("INSERT INTO directories (path, modified) SELECT path, modified FROM directories_v4");
+        db.execSQL("INSERT OR IGNORE INTO directories (path, modified) SELECT DISTINCT path, 0 FROM adplug WHERE path IS NOT NULL");
+        db.execSQL("INSERT OR IGNORE INTO directories (path, modified) SELECT path || '/' || name, 0 FROM adplug WHERE dir = 1 AND path IS NOT NULL");
+        db.execSQL("DROP TABLE directories_v4");
+
+        // Link folders to parent folders, adding any missing parents
+        Map<String, Long> ids = new HashMap<>();
+        Cursor cursor = db.rawQuery("SELECT id, path FROM directories", null);
+        try {
+            while (cursor.moveToNext()) {
+                ids.put(cursor.getString(1), cursor.getLong(0));
+            }
+        } finally {
+            cursor.close();
+        }
+        SQLiteStatement insert = db.compileStatement("INSERT INTO directories (path, modified) VALUES (?, 0)");
+        for (String path : new ArrayList<>(ids.keySet())) {
+            for (String parent = new File(path).getParent(); parent != null && !ids.containsKey(parent); parent = new File(parent).getParent()) {
+                insert.bindString(1, parent);
+                ids.put(parent, insert.executeInsert());
+            }
+        }
+        insert.close();
+        SQLiteStatement link = db.compileStatement("UPDATE directories SET parent_id = ?, name = ? WHERE id = ?");
+        for (Map.Entry<String, Long> entry : ids.entrySet()) {
+            File f = new File(entry.getKey());
+            Long parent = (f.getParent() != null) ? ids.get(f.getParent()) : null;
+            link.bindLong(1, (parent != null) ? parent : 0);
+            link.bindString(2, f.getName());
+            link.bindLong(3, entry.getValue());
+            link.executeUpdateDelete();
+        }
+        link.close();
+
+        // Triggers referring to full-text index dropped first, renaming fails on invalid triggers
+        db.execSQL("DROP TRIGGER adplug_bu");
+        db.execSQL("DROP TRIGGER adplug_bd");
+        db.execSQL("DROP TRIGGER adplug_au");
+        db.execSQL("DROP TRIGGER adplug_ai");
+        db.execSQL("DROP TABLE adplug_fts");
+        db.execSQL("ALTER TABLE adplug RENAME TO adplug_v4");
+        db.execSQL("CREATE TABLE adplug (id INTEGER PRIMARY KEY, dir_id INTEGER, name TEXT, type TEXT, " +
+                "title TEXT, author TEXT, description TEXT, length INTEGER, songlength INTEGER, subsongs INTEGER, " +
+                "valid INTEGER, dir INTEGER, playlist INTEGER, modified INTEGER, size INTEGER)");
+        db.execSQL("INSERT INTO adplug (id, dir_id, " + columns + ") SELECT adplug_v4.id, directories.id, " +
+                "adplug_v4.name, type, title, author, description, length, songlength, subsongs, valid, dir, playlist, " +
+                "adplug_v4.modified, size FROM adplug_v4 JOIN directories ON adplug_v4.path = directories.path");
+        db.execSQL("DROP TABLE adplug_v4");
+        db.execSQL("CREATE INDEX adplug_dir_id ON adplug (dir_id, name)");
+        db.execSQL("CREATE INDEX adplug_dir ON adplug (dir)");
+        db.execSQL("CREATE INDEX adplug_playlist ON adplug (playlist)");
+        db.execSQL("CREATE VIRTUAL TABLE adplug_fts USING fts4(content=\"adplug\", name, title, author, description)");
+        db.execSQL("INSERT INTO adplug_fts (adplug_fts) VALUES ('rebuild')");
+        db.execSQL("CREATE TRIGGER adplug_bu BEFORE UPDATE OF name, title, author, description ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_bd BEFORE DELETE ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_au AFTER UPDATE OF name, title, author, description ON adplug BEGIN " +
+                "INSERT INTO adplug_fts (docid, name, title, author, description) " +
+                "VALUES (new.rowid, new.name, new.title, new.author, new.description); END");
+        db.execSQL("CREATE TRIGGER adplug_ai AFTER INSERT ON adplug BEGIN " +
+                "INSERT INTO adplug_fts (docid, name, title, author, description) " +
+                "VALUES (new.rowid, new.name, new.title, new.author, new.description); END");
+    }
+
+    // Version 6: song names unique within folder
+    private static void upgradeToVersion6(SQLiteDatabase db) {
+        db.execSQL("DELETE FROM adplug WHERE id NOT IN (SELECT MAX(id) FROM adplug GROUP BY dir_id, name)");
+        db.execSQL("DROP INDEX adplug_dir_id");
+        db.execSQL("CREATE UNIQUE INDEX adplug_dir_id ON adplug (dir_id, name)");
+        db.execSQL("CREATE TRIGGER adplug_bi BEFORE INSERT ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = new.rowid; END");
+    }
+
+    // Version 7: song types and authors in lookup tables, full-text index reading author names through view
+    private static void upgradeToVersion7(SQLiteDatabase db) {
+        String columns = "length, songlength, subsongs, valid, dir, playlist, modified, size";
+        db.execSQL("CREATE TABLE types (id INTEGER PRIMARY KEY, name TEXT)");
+        db.execSQL("CREATE UNIQUE INDEX types_name ON types (name)");
+        db.execSQL("CREATE TABLE authors (id INTEGER PRIMARY KEY, name TEXT)");
+        db.execSQL("CREATE UNIQUE INDEX authors_name ON authors (name)");
+        db.execSQL("INSERT INTO types (name) SELECT DISTINCT type FROM adplug WHERE type IS NOT NULL");
+        db.execSQL("INSERT INTO authors (name) SELECT DISTINCT author FROM adplug WHERE author IS NOT NULL");
+        db.execSQL("DROP TRIGGER adplug_bu");
+        db.execSQL("DROP TRIGGER adplug_bd");
+        db.execSQL("DROP TRIGGER adplug_bi");
+        db.execSQL("DROP TRIGGER adplug_au");
+        db.execSQL("DROP TRIGGER adplug_ai");
+        db.execSQL("DROP TABLE adplug_fts");
+        db.execSQL("ALTER TABLE adplug RENAME TO adplug_v6");
+        db.execSQL("CREATE TABLE adplug (id INTEGER PRIMARY KEY, dir_id INTEGER, name TEXT, type_id INTEGER, " +
+                "title TEXT, author_id INTEGER, description TEXT, length INTEGER, songlength INTEGER, subsongs INTEGER, " +
+                "valid INTEGER, dir INTEGER, playlist INTEGER, modified INTEGER, size INTEGER)");
+        db.execSQL("INSERT INTO adplug (id, dir_id, name, type_id, title, author_id, description, " + columns + ") " +
+                "SELECT adplug_v6.id, dir_id, adplug_v6.name, types.id, title, authors.id, description, " + columns +
+                " FROM adplug_v6 LEFT JOIN types ON adplug_v6.type = types.name LEFT JOIN authors ON adplug_v6.author = authors.name");
+        db.execSQL("DROP TABLE adplug_v6");
+        db.execSQL("CREATE UNIQUE INDEX adplug_dir_id ON adplug (dir_id, name)");
+        db.execSQL("CREATE INDEX adplug_dir ON adplug (dir)");
+        db.execSQL("CREATE INDEX adplug_playlist ON adplug (playlist)");
+        db.execSQL("CREATE VIEW adplug_content AS SELECT adplug.id AS rowid, adplug.name AS name, title, " +
+                "authors.name AS author, description FROM adplug LEFT JOIN authors ON adplug.author_id = authors.id");
+        db.execSQL("CREATE VIRTUAL TABLE adplug_fts USING fts4(content=\"adplug_content\", name, title, author, description)");
+        db.execSQL("INSERT INTO adplug_fts (adplug_fts) VALUES ('rebuild')");
+        db.execSQL("CREATE TRIGGER adplug_bu BEFORE UPDATE OF name, title, author_id, description ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_bd BEFORE DELETE ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_bi BEFORE INSERT ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = new.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_au AFTER UPDATE OF name, title, author_id, description ON adplug BEGIN " +
+                "INSERT INTO adplug_fts (docid, name, title, author, description) VALUES (new.rowid, new.name, new.title, " +
+                "(SELECT name FROM authors WHERE id = new.author_id), new.description); END");
+        db.execSQL("CREATE TRIGGER adplug_ai AFTER INSERT ON adplug BEGIN " +
+                "INSERT INTO adplug_fts (docid, name, title, author, description) VALUES (new.rowid, new.name, new.title, " +
+                "(SELECT name FROM authors WHERE id = new.author_id), new.description); END");
+    }
+
+    // Version 8: normalized sort key columns, indexed by folder
+    private static void upgradeToVersion8(SQLiteDatabase db) {
+        db.execSQL("ALTER TABLE adplug ADD COLUMN name_key TEXT");
+        db.execSQL("ALTER TABLE adplug ADD COLUMN title_key TEXT");
+        db.execSQL("ALTER TABLE adplug ADD COLUMN author_key TEXT");
+        db.execSQL("ALTER TABLE adplug ADD COLUMN extension TEXT");
+        AdPlugDbSortKeys.update(db);
+        db.execSQL("CREATE INDEX adplug_name_key ON adplug (dir_id, dir DESC, name_key)");
+        db.execSQL("CREATE INDEX adplug_title_key ON adplug (dir_id, dir DESC, title_key)");
+        db.execSQL("CREATE INDEX adplug_author_key ON adplug (dir_id, dir DESC, author_key)");
+        db.execSQL("CREATE INDEX adplug_extension ON adplug (dir_id, dir DESC, extension, name_key)");
+        db.execSQL("CREATE INDEX adplug_songlength ON adplug (dir_id, dir DESC, songlength, name_key)");
+    }
+
+    // Version 9: full-text index with prefix indexes
+    private static void upgradeToVersion9(SQLiteDatabase db) {
+        db.execSQL("DROP TABLE adplug_fts");
+        db.execSQL("CREATE VIRTUAL TABLE adplug_fts USING fts4(content=\"adplug_content\", name, title, author, description, " +
+                "prefix=\"2,3\")");
+        db.execSQL("INSERT INTO adplug_fts (adplug_fts) VALUES ('rebuild')");
+    }
+
+    // Version 10: folder paths in full-text index
+    private static void upgradeToVersion10(SQLiteDatabase db) {
+        db.execSQL("DROP TRIGGER adplug_bu");
+        db.execSQL("DROP TRIGGER adplug_bd");
+        db.execSQL("DROP TRIGGER adplug_bi");
+        db.execSQL("DROP TRIGGER adplug_au");
+        db.execSQL("DROP TRIGGER adplug_ai");
+        db.execSQL("DROP TABLE adplug_fts");
+        db.execSQL("DROP VIEW adplug_content");
+        db.execSQL("CREATE VIEW adplug_content AS SELECT adplug.id AS rowid, adplug.name AS name, title, " +
+                "authors.name AS author, description, directories.path AS path FROM adplug " +
+                "LEFT JOIN authors ON adplug.author_id = authors.id LEFT JOIN directories ON adplug.dir_id = directories.id");
+        db.execSQL("CREATE VIRTUAL TABLE adplug_fts USING fts4(content=\"adplug_content\", name, title, author, description, path, " +
+                "prefix=\"2,3\")");
+        db.execSQL("INSERT INTO adplug_fts (adplug_fts) VALUES ('rebuild')");
+        db.execSQL("CREATE TRIGGER adplug_bu BEFORE UPDATE OF dir_id, name, title, author_id, description ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_bd BEFORE DELETE ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = old.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_bi BEFORE INSERT ON adplug BEGIN " +
+                "DELETE FROM adplug_fts WHERE docid = new.rowid; END");
+        db.execSQL("CREATE TRIGGER adplug_au AFTER UPDATE OF dir_id, name, title, author_id, description ON adplug BEGIN " +
+                "INSERT INTO adplug_fts (docid, name, title, author, description, path) VALUES (new.rowid, new.name, new.title, " +
+                "(SELECT name FROM authors WHERE id = new.author_id), new.description, " +
+                "(SELECT path FROM directories WHERE id = new.dir_id)); END");
+        db.execSQL("CREATE TRIGGER adplug_ai AFTER INSERT ON adplug BEGIN " +
+                "INSERT INTO adplug_fts (docid, name, title, author, description, path) VALUES (new.rowid, new.name, new.title, " +
+                "(SELECT name FROM authors WHERE id = new.author_id), new.description, " +
+                "(SELECT path FROM directories WHERE id = new.dir_id)); END");
+    }
 
     void setCallback(IAdPlugDbCallback callback) {
         mCallback = callback;
     }
 
+    void setParallelism(int parallelism) {
+        mScanner.setParallelism(parallelism);
+    }
+
+    void setSniffHeaders(boolean sniff) {
+        mClassifier.setSniffHeaders(sniff);
+    }
+
+    void setFastMetadata(boolean fast) {
+        mFastMetadata = fast;
+    }
+
+    // Seed of SORTBY_SHUFFLE order, same seed gives same order across sessions
+    void setShuffleSeed(long seed) {
+        mShuffleSeed = seed & SHUFFLE_MASK;
+        mListCache.clear();
+    }
+
+    void setInfoBatchSize(int size) {
+        requestPending();
+        mLock.lock();
+        try {
+            if (size > 1) {
+                mRequestNames = new String[size];
+                mRequestLengths = new long[size];
+            } else {
+                mRequestNames = null;
+                mRequestLengths = null;
+            }
+            mRequests = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    void flush() {
+        mShards.flush();
+    }
+
+    // Songs below removable storage roots are kept in a database for each storage root
+    void setStorageRoots(List<String> roots) {
+        mShards.flush();
+        migrate(mShards.setRoots(roots));
+        mListCache.clear();
+    }
+
+    // Songs and folders below storage roots indexed into primary database before, moved into shard
+    // of storage root. Rows are deleted from primary database only once found in shard, and left
+    // for a later attempt if storage root is not mounted.
+    private void migrate(List<String> roots) {
+        AdPlugDbShards.Shard primary = mShards.primary();
+        for (String root : roots) {
+            String[] args = {root, root + File.separator, root + (char) (File.separatorChar + 1)};
+            long count = 0;
+            try {
+                count = primary.statements.queryLong(SQL_TREE_COUNT, args);
+            } catch (android.database.SQLException e) {
+                Log.e(TAG, "migrate: SQLException: " + e.getMessage());
+            }
+            if (count <= 0 || !mShards.getRoots().contains(root) || !new File(root).isDirectory()) {
+                continue;
+            }
+
+            List<AdPlugFile> songs = new ArrayList<>();
+            List<Long> fingerprints = new ArrayList<>();
+            Cursor cursor = null;
+            try {
+                cursor = primary.statements.query(SQL_TREE, args);
+                while (cursor.moveToNext()) {
+                    songs.add(song(primary, cursor));
+                    fingerprints.add(cursor.getLong(13));
+                    fingerprints.add(cursor.getLong(14));
+                }
+            } catch (android.database.SQLException e) {
+                Log.e(TAG, "migrate: SQLException: " + e.getMessage());
+                continue;
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            long[] modified = new long[songs.size()];
+            long[] size = new long[songs.size()];
+            for (int i = 0; i < songs.size(); i++) {
+                modified[i] = fingerprints.get(2 * i);
+                size[i] = fingerprints.get(2 * i + 1);
+            }
+            AdPlugDbShards.Shard shard = mShards.get(root);
+            shard.writer.insert(songs, modified, size);
+
+            // Indexed folders not scanned again while unmodified
+            cursor = null;
+            try {
+                cursor = primary.statements.query(SQL_TREE_DIRECTORIES, args);
+                while (cursor.moveToNext()) {
+                    shard.writer.directory(cursor.getString(0), cursor.getLong(1));
+                }
+            } catch (android.database.SQLException e) {
+                Log.e(TAG, "migrate: SQLException: " + e.getMessage());
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            shard.writer.flush();
+
+            long copied = -1;
+            try {
+                copied = shard.statements.queryLong(SQL_TREE_COUNT, args);
+            } catch (android.database.SQLException e) {
+                Log.e(TAG, "migrate: SQLException: " + e.getMessage());
+            }
+            if (copied < songs.size()) {
+                Log.w(TAG, "migrate: " + root + ": " + copied + " of " + songs.size() + " songs copied, kept in primary database");
+                continue;
+            }
+            primary.writer.deleteFolders(Collections.singletonList(root));
+            primary.writer.flush();
+        }
+    }
+
+    // Root folders of removable storage volumes, from app specific folders on each volume
+    private static List<String> findStorageRoots(Context context) {
+        List<String> roots = new ArrayList<>();
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.KITKAT) {
+            return roots;
+        }
+        File[] dirs = context.getExternalFilesDirs(null);
+        // First volume is primary shared storage, kept in primary database
+        for (int i = 1; dirs != null && i < dirs.length; i++) {
+            if (dirs[i] == null) {
+                continue;
+            }
+            String path = dirs[i].getAbsolutePath();
+            int end = path.indexOf("/Android/data/");
+            if (end > 0) {
+                roots.add(path.substring(0, end));
+            }
+        }
+        return roots;
+    }
+
     void getStatus() {
         if (mCallback != null) {
             mCallback.onStatus(mStatus);
@@ -106,6 +751,10 @@ public class AdPlugDb extends SQLiteOpenHelper {
     }
 
     void index(File root, boolean quick) {
+        if (quick && mStatus == INDEXING) {
+            Log.i(TAG, "index: indexing already in progress: " + root);
+            return;
+        }
         boolean found = hasPath(root);
         if (found && quick) {
             Log.i(TAG, "index: path already exists in database" + root);
@@ -115,36 +764,65 @@ public class AdPlugDb extends SQLiteOpenHelper {
             updateStatus(UNINITIALIZED);
         }
 
-        try {
-            if (!mLock.isHeldByCurrentThread()) {
-                mLock.lock();
-            }
-            mIndexSongs.clear();
-        } finally {
-            mLock.unlock();
+        startIndex();
+        mShards.clearJournal();
+        mShards.writer(root.getAbsolutePath()).journal(JOURNAL_DIR, root.getAbsolutePath(), 0);
+        mScanner.scan(root, true, newIndexer(false));
+        finishIndex();
+    }
+
+    // Continue indexing interrupted by process restart, from the directories and songs left in journal
+    void resume() {
+        if (mResumed) {
+            return;
+        }
+        mResumed = true;
+        migrate(mAddedRoots);
+        List<String> dirs = new ArrayList<>();
+        List<String> songs = new ArrayList<>();
+        List<Long> lengths = new ArrayList<>();
+        findJournal(dirs, songs, lengths);
+        if (dirs.isEmpty() && songs.isEmpty()) {
+            return;
         }
+        Log.i(TAG, "resume: " + dirs.size() + " directories, " + songs.size() + " songs");
+        updateStatus(UNINITIALIZED);
 
-        recursiveIndex(root, false);
-        updateStatus(INDEXING);
+        startIndex();
+        DirectoryIndexer indexer = newIndexer(false);
+        for (String dir : dirs) {
+            mScanner.scan(new File(dir), true, indexer);
+        }
+        for (int i = 0; i < songs.size(); i++) {
+            addSong(songs.get(i), lengths.get(i), false);
+        }
+        finishIndex();
+    }
 
-        boolean initialized = false;
+    private void startIndex() {
+        mTracker.startIndex();
+        mLock.lock();
         try {
-            if (!mLock.isHeldByCurrentThread()) {
-                mLock.lock();
-            }
-            if (mIndexSongs.size() == 0) {
-                initialized = true;
-            }
+            mIndexDirs.clear();
         } finally {
             mLock.unlock();
         }
+    }
 
-        if (initialized) {
-            updateStatus(INITIALIZED);
+    private void finishIndex() {
+        requestPending();
+        mShards.flush();
+        updateStatus(INDEXING);
+
+        if (mTracker.arm(AdPlugDbTracker.JOB_INDEX)) {
+            onIndexed();
         }
     }
 
     void delete() {
+        mShards.clear();
+        mShards.delete();
+        mListCache.clear();
         SQLiteDatabase db = getWritableDatabase();
 
         File databaseFile = new File(db.getPath());
@@ -153,6 +831,8 @@ public class AdPlugDb extends SQLiteOpenHelper {
         int rows = -1;
         try {
             rows = db.delete(TABLE_NAME, null, null);
+            db.delete(DIR_TABLE_NAME, null, null);
+            db.delete(JOURNAL_TABLE_NAME, null, null);
         } catch (android.database.SQLException e) {
             Log.e(TAG, "delete: SQLException: " + e.getMessage());
         }
@@ -165,88 +845,217 @@ public class AdPlugDb extends SQLiteOpenHelper {
         }
     }
 
+    // Write songs and folders to snapshot file
+    void exportSnapshot(String file) {
+        mShards.flush();
+        OutputStream os = null;
+        try {
+            os = new FileOutputStream(file);
+            List<SQLiteDatabase> dbs = new ArrayList<>();
+            for (AdPlugDbShards.Shard shard : mShards.mounted()) {
+                dbs.add(shard.helper.getReadableDatabase());
+            }
+            long songs = AdPlugDbSnapshot.write(dbs, os);
+            Log.i(TAG, "exportSnapshot: " + songs + " songs: " + file);
+        } catch (IOException e) {
+            Log.e(TAG, "exportSnapshot: IOException: " + e.getMessage());
+        } catch (android.database.SQLException e) {
+            Log.e(TAG, "exportSnapshot: SQLException: " + e.getMessage());
+        } finally {
+            if (os != null) {
+                try {
+                    os.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "exportSnapshot: IOException: " + e.getMessage());
+                }
+            }
+        }
+    }
+
+    // Replace songs and folders with snapshot file contents
+    void importSnapshot(String file) {
+        // Pending changes written first, and discarded only once snapshot has replaced them
+        mShards.flush();
+        InputStream is = null;
+        boolean imported = false;
+        try {
+            is = new FileInputStream(file);
+            long songs = AdPlugDbSnapshot.read(mShards, is);
+            Log.i(TAG, "importSnapshot: " + songs + " songs: " + file);
+            imported = true;
+        } catch (IOException e) {
+            Log.e(TAG, "importSnapshot: IOException: " + e.getMessage());
+        } catch (android.database.SQLException e) {
+            Log.e(TAG, "importSnapshot: SQLException: " + e.getMessage());
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "importSnapshot: IOException: " + e.getMessage());
+                }
+            }
+        }
+        mListCache.clear();
+        if (imported) {
+            mShards.clear();
+            updateStatus(INITIALIZED);
+        }
+    }
+
     void list(File path, int sortby, int order, boolean quick, boolean hide, boolean random) {
-        boolean found = hasPath(path);
+        mPath = path.getAbsolutePath();
+        // Random order of seed set through setShuffleSeed(), same as SORTBY_SHUFFLE
+        mSortBy = random ? IAdPlugDb.SORTBY_SHUFFLE : sortby;
+        mOrder = order;
         mHide = hide;
-        mRandom = random;
-        if (found && quick) {
+        mLimit = 0;
+        if (quick) {
+            // Cached folder listed without looking up folder or writing pending changes
+            List<AdPlugFile> dbFiles = mListCache.get(mPath, mSortBy, mOrder, mHide);
+            if (dbFiles != null) {
+                onList(dbFiles, false);
+                return;
+            }
+            if (hasPath(path)) {
+                onList(null, true);
+                return;
+            }
+        }
+
+        recursiveIndex(path, true);
+        requestPending();
+
+        if (mTracker.arm(AdPlugDbTracker.JOB_LIST)) {
             onList();
-            return;
         }
+    }
 
+    // Page of songs and folders in folder, sorted and filtered in database. Folder is scanned when
+    // first page is requested, following pages are read from database.
+    void listPage(File path, int sortby, int order, boolean hide, int offset, int limit) {
         mPath = path.getAbsolutePath();
         mSortBy = sortby;
         mOrder = order;
-
-        try {
-            if (!mLock.isHeldByCurrentThread()) {
-                mLock.lock();
-            }
-//            mListSongs.clear();
-        } finally {
-            mLock.unlock();
+        mHide = hide;
+        mOffset = Math.max(offset, 0);
+        mLimit = Math.max(limit, 1);
+        if (offset > 0) {
+            onList();
+            return;
         }
 
         recursiveIndex(path, true);
+        requestPending();
 
-        boolean onlist = false;
-        try {
-            if (!mLock.isHeldByCurrentThread()) {
-                mLock.lock();
-            }
-            mLock.lock();
-            mOnList = true;
-            if (mListSongs.size() == 0) {
-                mOnList = false;
-                onlist = true;
-            }
-        } finally {
-            mLock.unlock();
-        }
-
-        if (onlist) {
+        if (mTracker.arm(AdPlugDbTracker.JOB_LIST)) {
             onList();
         }
     }
 
     void playlist() {
         if (mCallback != null) {
-            List<AdPlugFile> dbFiles = findInteger(KEY_PLAYLIST, 1);
+            mShards.flush();
+            List<AdPlugFile> dbFiles = findPlaylists();
             mCallback.onPlaylist(dbFiles);
         }
     }
 
     AdPlugFile add(String name, long length, boolean onlist) {
+        AdPlugFile song = addSong(name, length, onlist);
+        requestPending();
+        if (onlist) {
+            mTracker.arm(AdPlugDbTracker.JOB_LIST);
+        }
+        return song;
+    }
+
+    private AdPlugFile addSong(String name, long length, boolean onlist) {
         AdPlugFile song = null;
-        boolean contains = false;
+        File f = new File(name);
+        if (mCallback == null) {
+            // Unable to get get song information from AdPlug
+            song = new AdPlugFile(f.getParent(), f.getName(), null, null, null, null, 0, -1, -1, false, isPlaylist(f));
+            addToDB(song);
+        } else if (!mClassifier.isSupported(f)) {
+            // Not playable by AdPlug, store as invalid without requesting song information
+            song = new AdPlugFile(f.getParent(), f.getName(), null, null, null, null, length, -1, -1, false, false);
+            addToDB(song);
+            mTracker.skip();
+        } else if (mFastMetadata && (song = mMetadata.extract(f, length)) != null) {
+            // Song information read from file header
+            addToDB(song);
+        } else if (mTracker.request(name, onlist)) {
+            // Request song information from AdPlug
+            mShards.writer(name).journal(JOURNAL_SONG, name, length);
+            requestInfo(name, length);
+        }
+        return song;
+    }
+
+    private void requestInfo(String name, long length) {
+        boolean batch;
+        String[] names = null;
+        long[] lengths = null;
+        mLock.lock();
         try {
-            if (!mLock.isHeldByCurrentThread()) {
-                mLock.lock();
-            }
-            contains = mIndexSongs.contains(name);
-            if (!contains) {
-                if (onlist) {
-                    mListSongs.add(name);
-                    mOnList = true;
+            batch = (mRequestNames != null);
+            if (batch) {
+                mRequestNames[mRequests] = name;
+                mRequestLengths[mRequests] = length;
+                mRequests++;
+                if (mRequests == mRequestNames.length) {
+                    names = mRequestNames;
+                    lengths = mRequestLengths;
+                    mRequestNames = new String[names.length];
+                    mRequestLengths = new long[lengths.length];
+                    mRequests = 0;
                 }
-                mIndexSongs.add(name);
             }
         } finally {
             mLock.unlock();
         }
 
-        if (!contains) {
-            if (mCallback != null) {
-                // Request song information from AdPlug
-                mCallback.requestInfo(name, length);
-            } else {
-                // Unable to get get song information from AdPlug
-                File f = new File(name);
-                song = new AdPlugFile(f.getParent(), f.getName(), null, null, null, null, 0, -1, -1, false, isPlaylist(f));
-                addToDB(song);
+        IAdPlugDbCallback callback = mCallback;
+        if (callback != null) {
+            if (!batch) {
+                callback.requestInfo(name, length);
+            } else if (names != null) {
+                requestInfoBatch(callback, names, lengths);
             }
         }
-        return song;
+    }
+
+    // Songs requested one by one from callbacks without batch requests
+    private static void requestInfoBatch(IAdPlugDbCallback callback, String[] names, long[] lengths) {
+        if (callback instanceof IAdPlugDbCallback2) {
+            ((IAdPlugDbCallback2) callback).requestInfoBatch(names, lengths);
+        } else {
+            for (int i = 0; i < names.length; i++) {
+                callback.requestInfo(names[i], lengths[i]);
+            }
+        }
+    }
+
+    // Request information for any songs waiting for a full batch
+    private void requestPending() {
+        String[] names = null;
+        long[] lengths = null;
+        mLock.lock();
+        try {
+            if (mRequests > 0) {
+                names = Arrays.copyOf(mRequestNames, mRequests);
+                lengths = Arrays.copyOf(mRequestLengths, mRequests);
+                mRequests = 0;
+            }
+        } finally {
+            mLock.unlock();
+        }
+
+        IAdPlugDbCallback callback = mCallback;
+        if (callback != null && names != null) {
+            requestInfoBatch(callback, names, lengths);
+        }
     }
 
     void remove(String name) {
@@ -256,356 +1065,574 @@ public class AdPlugDb extends SQLiteOpenHelper {
         deleteFromDB(song);
     }
 
-    void rename(String before, String after) {
-        String sql = "SELECT rowid,* FROM " + TABLE_NAME;
-        List<AdPlugFile> tests = queryDB(sql);
+    // Remove song, or folder with all songs and folders below
+    void removeTree(String path) {
+        removeAll(Collections.singletonList(path));
+    }
+
+    // Remove songs and folders, in a single transaction
+    void removeAll(Collection<String> names) {
+        for (String name : names) {
+            mListCache.invalidate(new File(name).getParent());
+            mListCache.invalidateTree(name);
+        }
+        for (Map.Entry<AdPlugDbShards.Shard, List<String>> group : mShards.group(names).entrySet()) {
+            group.getKey().writer.deleteTrees(group.getValue());
+        }
+    }
 
+    // Rename or move song or folder, songs below folder are moved with folder
+    void rename(String before, String after) {
         File f = new File(before);
         AdPlugFile beforeSong = new AdPlugFile(f.getParent(), f.getName(), null, null, null, null, 0, -1, -1, false, isPlaylist(f));
         f = new File(after);
         AdPlugFile afterSong = new AdPlugFile(f.getParent(), f.getName(), null, null, null, null, 0, -1, -1, false, isPlaylist(f));
-        List<AdPlugFile> songs = findSong(beforeSong);
-        for (AdPlugFile song : songs) {
-            int rowid = song.rowid;
-            renameInDB(rowid, afterSong);
+        renameInDB(beforeSong, afterSong);
+    }
+
+    // Apply file system changes reported by AdPlugDbWatcher
+    void update(AdPlugDbWatcher.Changes changes) {
+        for (int i = 0; i < changes.renamedFrom.size(); i++) {
+            rename(changes.renamedFrom.get(i), changes.renamedTo.get(i));
+        }
+        if (!changes.removed.isEmpty()) {
+            removeAll(changes.removed);
         }
+        for (String name : changes.dirs) {
+            // New or moved folder, index folder and its contents
+            File f = new File(name);
+            addToDB(new AdPlugFile(f.getParent(), f.getName()));
+            mScanner.scan(f, true, new DirectoryIndexer(false, null, null));
+        }
+        for (int i = 0; i < changes.added.size(); i++) {
+            // New or modified song, replace song information
+            String name = changes.added.get(i);
+            remove(name);
+            addSong(name, changes.lengths.get(i), false);
+        }
+        requestPending();
+        mShards.flush();
     }
 
     void getCount() {
-        SQLiteDatabase db = getReadableDatabase();
-
-        String sql = "SELECT COUNT(*) FROM " + TABLE_NAME;
-        SQLiteStatement statement = db.compileStatement(sql);
-        long count = statement.simpleQueryForLong();
+        mShards.flush();
+        long count = 0;
+        List<Long> counts = mShards.query(new AdPlugDbShards.IShardQuery<Long>() {
+            @Override
+            public Long query(AdPlugDbShards.Shard shard) {
+                try {
+                    return shard.statements.queryLong(SQL_COUNT);
+                } catch (android.database.SQLException e) {
+                    Log.e(TAG, "getCount: SQLException: " + e.getMessage());
+                }
+                return 0L;
+            }
+        });
+        for (Long shardCount : counts) {
+            if (shardCount != null) {
+                count += shardCount;
+            }
+        }
 
         if (mCallback != null) {
             mCallback.onGetCount(count);
         }
     }
 
+    void getProgress() {
+        if (mCallback instanceof IAdPlugDbCallback2) {
+            ((IAdPlugDbCallback2) mCallback).onGetProgress(mTracker.getOutstanding(), mTracker.getCompleted(), mTracker.getSkipped());
+        }
+    }
+
+    void getCacheStats() {
+        if (mCallback instanceof IAdPlugDbCallback2) {
+            ((IAdPlugDbCallback2) mCallback).onGetCacheStats(mListCache.hitCount(), mListCache.missCount(), mListCache.size());
+        }
+    }
+
+    // Songs and folders matching all terms of query as prefixes, in song or in folder path, most
+    // relevant first
     void search(String query) {
-        String sql = "SELECT rowid,* FROM " + TABLE_NAME + " WHERE " +
-                TABLE_NAME + " MATCH '" +
-                KEY_PATH + ":*" + query + "* OR " +
-                KEY_NAME + ":*" + query + "* OR " +
-                KEY_TITLE + ":*" + query + "* OR " +
-                KEY_AUTHOR + ":*" + query + "* OR " +
-                KEY_DESC + ":*" + query + "*'";
-        List<AdPlugFile> songs = queryDB(sql);
+        mShards.flush();
+        final String match = AdPlugDbSearch.match(query);
+        List<AdPlugFile> songs = new ArrayList<>();
+        if (match != null) {
+            List<List<AdPlugDbSearch.Match>> results = mShards.query(new AdPlugDbShards.IShardQuery<List<AdPlugDbSearch.Match>>() {
+                @Override
+                public List<AdPlugDbSearch.Match> query(AdPlugDbShards.Shard shard) {
+                    return searchShard(shard, match);
+                }
+            });
+            List<AdPlugDbSearch.Match> matches = new ArrayList<>();
+            for (List<AdPlugDbSearch.Match> result : results) {
+                if (result != null) {
+                    matches.addAll(result);
+                }
+            }
+            Collections.sort(matches, AdPlugDbSearch.BY_SCORE);
+            for (int i = 0; i < matches.size() && i < SEARCH_LIMIT; i++) {
+                songs.add(matches.get(i).song);
+            }
+        }
 
         if (mCallback != null) {
             mCallback.onSearch(songs);
         }
     }
 
+    // Most relevant matches in shard, at most SEARCH_LIMIT, ranked before songs are read
+    private static List<AdPlugDbSearch.Match> searchShard(AdPlugDbShards.Shard shard, String match) {
+        PriorityQueue<AdPlugDbSearch.Match> top = new PriorityQueue<>(SEARCH_LIMIT,
+                Collections.reverseOrder(AdPlugDbSearch.BY_SCORE));
+        Cursor cursor = null;
+        try {
+            cursor = shard.statements.query(SQL_SEARCH, match);
+            while (cursor.moveToNext()) {
+                double score = AdPlugDbSearch.rank(cursor.getBlob(1));
+                if (top.size() < SEARCH_LIMIT || score > top.peek().score) {
+                    top.add(new AdPlugDbSearch.Match(cursor.getLong(0), score));
+                    if (top.size() > SEARCH_LIMIT) {
+                        top.poll();
+                    }
+                }
+            }
+        } catch (android.database.SQLException e) {
+            Log.e(TAG, "searchShard: SQLException: " + e.getMessage());
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        if (top.isEmpty()) {
+            return Collections.emptyList();
+        }
+
+        StringBuilder sql = new StringBuilder(SQL_SONGS + " WHERE " + TABLE_NAME + "." + KEY_ID + " IN (");
+        String[] ids = new String[top.size()];
+        Map<Long, AdPlugDbSearch.Match> matches = new HashMap<>();
+        int i = 0;
+        for (AdPlugDbSearch.Match m : top) {
+            sql.append((i > 0) ? ", ?" : "?");
+            ids[i++] = Long.toString(m.id);
+            matches.put(m.id, m);
+        }
+        sql.append(")");
+        List<AdPlugDbSearch.Match> found = new ArrayList<>(top.size());
+        for (AdPlugFile song : queryDB(shard, sql.toString(), ids)) {
+            AdPlugDbSearch.Match m = matches.get((long) song.rowid);
+            if (m != null) {
+                m.song = song;
+                found.add(m);
+            }
+        }
+        return found;
+    }
+
     void onSongInfo(String name, String type, String title, String author, String desc, long length, long songlength, int subsongs, boolean valid, boolean playlist) {
         // Add song to DB
         File f = new File(name);
         AdPlugFile song = new AdPlugFile(f.getParent(), f.getName(), type, title, author, desc, length, songlength, subsongs, valid, playlist);
+        mShards.writer(name).unjournal(JOURNAL_SONG, name);
         addToDB(song);
-        boolean initialized = false;
-        boolean onlist = false;
-        try {
-            if (!mLock.isHeldByCurrentThread()) {
-                mLock.lock();
-            }
-            if (mIndexSongs.contains(name)) {
-                mIndexSongs.remove(name);
-                if ((mIndexSongs.size() == 0) && mStatus == INDEXING) {
-                    initialized = true;
-                }
-            } else {
+        onSongsInfo(new String[] {name});
+    }
+
+    void onSongInfoBatch(AdPlugInfoBatch batch) {
+        // Add songs to DB in a single transaction
+        List<AdPlugFile> songs = new ArrayList<>(batch.size());
+        for (int i = 0; i < batch.size(); i++) {
+            File f = new File(batch.songs[i]);
+            songs.add(new AdPlugFile(f.getParent(), f.getName(), batch.types[i], batch.titles[i], batch.authors[i], batch.descs[i], batch.lengths[i], batch.songlengths[i], batch.subsongs[i], batch.valid[i], batch.playlist[i]));
+            mShards.writer(batch.songs[i]).unjournal(JOURNAL_SONG, batch.songs[i]);
+        }
+        addToDB(songs);
+        onSongsInfo(batch.songs);
+    }
+
+    private void onSongsInfo(String[] names) {
+        int completed = AdPlugDbTracker.JOB_NONE;
+        for (String name : names) {
+            int jobs = mTracker.complete(name);
+            if (jobs < 0) {
                 Log.e(TAG, "onSongInfo: " + name + " NOT FOUND!");
+            } else {
+                completed |= jobs;
             }
-            if (mListSongs.contains(name)) {
-                mListSongs.remove(name);
-                if (mListSongs.size() == 0 && mOnList) {
-                    mOnList = false;
-                    onlist = true;
-                }
-            }
-        } finally {
-            mLock.unlock();
         }
 
-        if (initialized) {
-            updateStatus(INITIALIZED);
+        if ((completed & AdPlugDbTracker.JOB_INDEX) != 0) {
+            onIndexed();
         }
 
-       if (onlist) {
+        if ((completed & AdPlugDbTracker.JOB_LIST) != 0) {
             onList();
         }
     }
 
+    // All songs indexed, directory contents may now be trusted for as long as they remain unmodified
+    private void onIndexed() {
+        Map<String, Long> dirs;
+        mLock.lock();
+        try {
+            dirs = mIndexDirs;
+            mIndexDirs = new HashMap<>();
+        } finally {
+            mLock.unlock();
+        }
+        for (Map.Entry<String, Long> dir : dirs.entrySet()) {
+            mShards.writer(dir.getKey()).directory(dir.getKey(), dir.getValue());
+        }
+        mShards.clearJournal();
+        mShards.flush();
+        updateStatus(INITIALIZED);
+    }
+
     private void onList() {
-        if (mCallback != null) {
-            List<AdPlugFile> dbFiles = findString(KEY_PATH, mPath);
-            if (mSortBy != IAdPlugDb.SORTBY_NONE) {
-                try {
-                    java.util.Collections.sort(dbFiles, new AdPlugComparator(mSortBy, mOrder));
-                } catch (UnsupportedOperationException e) {
-                    Log.e(TAG, "onList: UnsupportedOperationException: " + e.getMessage());
-                }
-            }
-            if (mHide) {
-                Iterator<AdPlugFile> it = dbFiles.iterator();
-                while (it.hasNext()) {
-                    AdPlugFile file = it.next();
-                    if (file != null && !file.valid && !file.dir && !file.playlist) {
-                        it.remove();
-                    }
-                }
-            }
-            if (mRandom) {
-                try {
-                    java.util.Collections.shuffle(dbFiles);
-                } catch (UnsupportedOperationException e) {
-                    Log.e(TAG, "onList: UnsupportedOperationException: " + e.getMessage());
+        onList(null, false);
+    }
+
+    // Songs in folder, from cached list if given, or read from database if already not found in cache
+    private void onList(List<AdPlugFile> cached, boolean missed) {
+        if (mCallback != null && mLimit > 0) {
+            onListPage();
+        } else if (mCallback != null) {
+            List<AdPlugFile> dbFiles = (cached != null || missed) ? cached : mListCache.get(mPath, mSortBy, mOrder, mHide);
+            if (dbFiles == null) {
+                long generation = mListCache.generation();
+                boolean committed = mShards.writer(mPath).flushPending(mPath);
+                dbFiles = findFolder(mPath, mSortBy, mOrder, mHide);
+                // Listing read during commit of folder is not cached
+                if (committed) {
+                    mListCache.put(mPath, mSortBy, mOrder, mHide, dbFiles, generation);
                 }
             }
             mCallback.onList(dbFiles);
         }
     }
 
-    private static class AdPlugComparator implements Comparator<AdPlugFile> {
-        int mSortBy;
-        boolean mReverse;
+    private void onListPage() {
+        String path = mPath;
+        AdPlugDbShards.Shard shard = mShards.get(path);
+        shard.writer.flushPending(path);
+        long total = 0;
+        try {
+            total = shard.statements.queryLong("SELECT COUNT(*) FROM " + SONG_TABLES + folderWhere(mHide), path);
+        } catch (android.database.SQLException e) {
+            Log.e(TAG, "onListPage: SQLException: " + e.getMessage());
+        }
+        String sql = SQL_SONGS + folderWhere(mHide) + orderBy(mSortBy, mOrder, true) + " LIMIT ? OFFSET ?";
+        List<AdPlugFile> songs = queryDB(shard, sql, folderArgs(path, mSortBy, Integer.toString(mLimit), Integer.toString(mOffset)));
+        if (mCallback instanceof IAdPlugDbCallback2) {
+            ((IAdPlugDbCallback2) mCallback).onListPage(path, songs, mOffset, total);
+        }
+    }
 
-        public AdPlugComparator(int sortby, int order) {
-            mSortBy = sortby;
-            mReverse = (order == IAdPlugDb.ORDER_DESCENDING);
+    private static String folderWhere(boolean hide) {
+        return " WHERE " + DIR_TABLE_NAME + "." + KEY_PATH + " = ?" + (hide ? SQL_HIDE : "");
+    }
+
+    // Folder path, shuffle seed if shuffled, and arguments following order
+    private String[] folderArgs(String path, int sortby, String... args) {
+        List<String> folderArgs = new ArrayList<>();
+        folderArgs.add(path);
+        if (sortby == IAdPlugDb.SORTBY_SHUFFLE) {
+            folderArgs.add(Long.toString(mShuffleSeed));
         }
+        folderArgs.addAll(Arrays.asList(args));
+        return folderArgs.toArray(new String[0]);
+    }
 
-        private int fileCompare(AdPlugFile o1, AdPlugFile o2) {
-            String s1 = "";
-            if (o1.name != null && !o1.name.isEmpty()) {
-                s1 = o1.name.toLowerCase();
-            }
+    // Folders first, then songs by stored sort keys or shuffled, and by id for stable pages. Unsorted
+    // folders are listed in database order, and paged in order songs were added.
+    private static String orderBy(int sortby, int order, boolean page) {
+        String direction = (order == IAdPlugDb.ORDER_DESCENDING) ? " DESC" : "";
+        String key;
+        switch (sortby) {
+            case IAdPlugDb.SORTBY_TITLE:
+                key = KEY_TITLE_KEY + direction;
+                break;
+            case IAdPlugDb.SORTBY_AUTHOR:
+                key = KEY_AUTHOR_KEY + direction;
+                break;
+            case IAdPlugDb.SORTBY_FILE:
+                key = KEY_NAME_KEY + direction;
+                break;
+            case IAdPlugDb.SORTBY_TYPE:
+                key = KEY_EXTENSION + direction + ", " + KEY_NAME_KEY + direction;
+                break;
+            case IAdPlugDb.SORTBY_LENGTH:
+                key = KEY_SONGLENGTH + direction + ", " + KEY_NAME_KEY + direction;
+                break;
+            case IAdPlugDb.SORTBY_SHUFFLE:
+                key = shuffleKey();
+                break;
+            default:
+                return page ? " ORDER BY " + TABLE_NAME + "." + KEY_ID : "";
+        }
+        return " ORDER BY " + KEY_DIR + " DESC, " + key + ", " + TABLE_NAME + "." + KEY_ID;
+    }
 
-            String s2 = "";
-            if (o2.name != null && !o2.name.isEmpty()) {
-                s2 = o2.name.toLowerCase();
-            }
+    // Pseudo-random order of songs by hash of id and seed, multiply and xor-shift rounds on 32 bits
+    // keeping products within 64-bit integers. Seed is mixed in by xor after hashing id, so that
+    // seeds do not just rotate the same order. Bitwise xor written as (a | b) - (a & b). Seed bound
+    // as parameter, so that statement is the same for all seeds.
+    static String shuffleKey() {
+        String id = "((" + TABLE_NAME + "." + KEY_ID + " & " + SHUFFLE_MASK + ") * " + SHUFFLE_MULTIPLIER1 + " & " + SHUFFLE_MASK + ")";
+        String x = "(" + xor(id, SHUFFLE_SEED) + " * " + SHUFFLE_MULTIPLIER2 + " & " + SHUFFLE_MASK + ")";
+        return "(" + xor(x, "(" + x + " >> 16)") + " * " + SHUFFLE_MULTIPLIER1 + " & " + SHUFFLE_MASK + ")";
+    }
 
-            if (mReverse) {
-                return s2.compareTo(s1);
-            } else {
-                return s1.compareTo(s2);
-            }
+    private static String xor(String a, String b) {
+        return "((" + a + " | " + b + ") - (" + a + " & " + b + "))";
+    }
+
+    private boolean hasPath(File path) {
+        String folder = "";
+        if (path != null) {
+            folder = path.getAbsolutePath();
         }
+        AdPlugDbShards.Shard shard = mShards.get((path != null) ? folder : null);
+        shard.writer.flushPending(folder);
+        boolean found = false;
 
-        private int titleCompare(AdPlugFile o1, AdPlugFile o2) {
-            String s1 = "";
-            if (o1.title != null && !o1.title.isEmpty()) {
-                s1 = o1.title.toLowerCase();
-            } else if (o1.name != null && !o1.name.isEmpty()) {
-                s1 = o1.name.toLowerCase();
-            }
-            if (!s1.isEmpty() && s1.charAt(0) == '\"') {
-                s1 = s1.substring(1);
-            }
-            s1 = s1.trim();
+        try {
+            found = (shard.statements.queryLong(SQL_HAS_PATH, folder) >= 0);
+        } catch (android.database.SQLException e) {
+            Log.e(TAG, "hasPath: SQLException: " + e.getMessage());
+        }
+        return found;
+    }
 
-            String s2 = "";
-            if (o2.title != null && !o2.title.isEmpty()) {
-                s2 = o2.title.toLowerCase();
-            } else if (o2.name != null && !o2.name.isEmpty()) {
-                s2 = o2.name.toLowerCase();
-            }
-            if (!s2.isEmpty() && s2.charAt(0) == '\"') {
-                s2 = s2.substring(1);
-            }
-            s2 = s2.trim();
+    private void recursiveIndex(File path, boolean onlist) {
+        mScanner.scan(path, !onlist, newIndexer(onlist));
+    }
 
-            if (mReverse) {
-                return s2.compareTo(s1);
-            } else {
-                return s1.compareTo(s2);
-            }
+    private DirectoryIndexer newIndexer(boolean onlist) {
+        if (onlist) {
+            return new DirectoryIndexer(true, null, null);
         }
+        mShards.flush();
+        return new DirectoryIndexer(false, findDirectories(), findSubdirectories());
+    }
 
-        private int authorCompare(AdPlugFile o1, AdPlugFile o2) {
-            String s1 = "";
-            if (o1.author != null && !o1.author.isEmpty()) {
-                s1 = o1.author.toLowerCase();
-            } else if (o1.name != null && !o1.name.isEmpty()) {
-                s1 = o1.name.toLowerCase();
-            }
+    private class DirectoryIndexer implements AdPlugDbScanner.IScanCallback {
+        private final boolean mOnList;
+        private final Map<String, Long> mDirectories;
+        private final Map<String, List<File>> mSubdirectories;
 
-            String s2 = "";
-            if (o2.author != null && !o2.author.isEmpty()) {
-                s2 = o2.author.toLowerCase();
-            } else if (o2.name != null && !o2.name.isEmpty()) {
-                s2 = o2.name.toLowerCase();
-            }
+        DirectoryIndexer(boolean onlist, Map<String, Long> directories, Map<String, List<File>> subdirectories) {
+            mOnList = onlist;
+            mDirectories = directories;
+            mSubdirectories = subdirectories;
+        }
 
-            if (mReverse) {
-                return s2.compareTo(s1);
-            } else {
-                return s1.compareTo(s2);
+        @Override
+        public File[] getSubdirectories(File path, long modified) {
+            if (mDirectories == null || modified == 0) {
+                return null;
+            }
+            String name = path.getAbsolutePath();
+            Long known = mDirectories.get(name);
+            if (known == null || known != modified) {
+                return null;
             }
+            List<File> subdirs = mSubdirectories.get(name);
+            return (subdirs != null) ? subdirs.toArray(new File[0]) : new File[0];
         }
 
-        private int typeCompare(AdPlugFile o1, AdPlugFile o2) {
-            String s1 = getFileExtension(o1);
-            String s2 = getFileExtension(o2);
-            if (s1.equals(s2)) {
-                if (o1.name != null && !o1.name.isEmpty()) {
-                    s1 = o1.name.toLowerCase();
-                }
-                if (o2.name != null && !o2.name.isEmpty()) {
-                    s2 = o2.name.toLowerCase();
+        @Override
+        public void onDirectory(AdPlugDbScanner.Directory directory) {
+            indexDirectory(directory, mOnList);
+        }
+    }
+
+    private void indexDirectory(AdPlugDbScanner.Directory directory, boolean onlist) {
+        File[] fs = directory.files;
+        String path = directory.path.getAbsolutePath();
+
+        // Directory scanned, subdirectories remain to be scanned
+        AdPlugDbShards.Shard shard = mShards.get(path);
+        if (!onlist) {
+            shard.writer.unjournal(JOURNAL_DIR, path);
+            if (fs != null) {
+                for (int i = 0; i < fs.length; i++) {
+                    if (directory.dirs[i]) {
+                        mShards.writer(fs[i].getAbsolutePath()).journal(JOURNAL_DIR, fs[i].getAbsolutePath(), 0);
+                    }
                 }
             }
-            if (mReverse) {
-                return s2.compareTo(s1);
-            } else {
-                return s1.compareTo(s2);
+        }
+        if (directory.unchanged) {
+            return;
+        }
+        shard.writer.flush(path);
+        Map<String, long[]> fingerprints = findFingerprints(shard, path);
+
+        // Delete non-existent files from DB
+        String[] names = new String[(fs != null) ? fs.length : 0];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = fs[i].getName();
+        }
+        shard.writer.reconcile(path, names);
+        mListCache.invalidate(path);
+        // Vanished folders are deleted with all folders below
+        List<String> found = Arrays.asList(names);
+        for (String folder : mListCache.subfolders(path)) {
+            if (!found.contains(new File(folder).getName())) {
+                mListCache.invalidateTree(folder);
             }
         }
 
-        private String getFileExtension(AdPlugFile o) {
-            String extension = "";
-            if (o.name != null && !o.name.isEmpty()) {
-                int i = o.name.lastIndexOf(".");
-                if (i != -1) {
-                    extension = o.name.substring(i + 1).toUpperCase();
+        // Add directories, and new or modified songs to DB
+        if (fs != null && fs.length > 0) {
+            for (int i = 0; i < fs.length; i++) {
+                File f = fs[i];
+                if (directory.dirs[i]) {
+                    // Subdirectories are scanned separately by AdPlugDbScanner
+                    AdPlugFile song = new AdPlugFile(f.getParent(), f.getName());
+                    addToDB(song);
+                    continue;
+                }
+                long modified = directory.modifieds[i];
+                long length = directory.lengths[i];
+                long[] fingerprint = fingerprints.get(f.getName());
+                if (fingerprint == null) {
+                    // Request song information from AdPlug
+                    addSong(f.getAbsolutePath(), length, onlist);
+                } else if (fingerprint[0] == 0) {
+                    // Song indexed before fingerprints were stored, keep song information
+                    shard.writer.fingerprint(path, f.getName(), modified, length);
+                } else if (fingerprint[0] != modified || fingerprint[1] != length) {
+                    // Song modified, replace song information
+                    AdPlugFile song = new AdPlugFile(path, f.getName(), null, null, null, null, 0, -1, -1, false, isPlaylist(f));
+                    deleteFromDB(song);
+                    addSong(f.getAbsolutePath(), length, onlist);
                 }
             }
-            return extension;
         }
 
-        private int lengthComparison(AdPlugFile o1, AdPlugFile o2) {
-            Long l1 = o1.songlength;
-            Long l2 = o2.songlength;
-            if (mReverse) {
-                return l2.compareTo(l1);
-            } else {
-                return l1.compareTo(l2);
+        // Directory contents are stored once indexing completes. Recently modified directories are
+        // always listed again, as further changes may not be visible within timestamp resolution.
+        if (!onlist) {
+            long modified = directory.modified;
+            if (fs == null || System.currentTimeMillis() - modified < MODIFIED_RESOLUTION) {
+                modified = 0;
+            }
+            mLock.lock();
+            try {
+                mIndexDirs.put(path, modified);
+            } finally {
+                mLock.unlock();
             }
         }
+    }
 
-        @Override
-        public int compare(AdPlugFile o1, AdPlugFile o2) {
-            if (o1 == o2) {
-                return 0;
-            } else if (o1 == null) {
-                return -1;
-            } else if (o2 == null) {
-                return 1;
+    private Map<String, Long> findDirectories() {
+        Map<String, Long> dirs = new HashMap<>();
+        List<Cursor> cursors = queryCursors("findDirectories", SQL_DIRECTORIES);
+        for (Cursor cursor : cursors) {
+            while (cursor.moveToNext()) {
+                dirs.put(cursor.getString(0), cursor.getLong(1));
             }
+            cursor.close();
+        }
+        return dirs;
+    }
 
-            if (o1.getClass() != o2.getClass()) {
-                throw new ClassCastException();
+    private Map<String, List<File>> findSubdirectories() {
+        Map<String, List<File>> subdirs = new HashMap<>();
+        List<Cursor> cursors = queryCursors("findSubdirectories", SQL_SUBDIRECTORIES);
+        for (Cursor cursor : cursors) {
+            while (cursor.moveToNext()) {
+                String path = cursor.getString(0);
+                List<File> files = subdirs.get(path);
+                if (files == null) {
+                    files = new ArrayList<>();
+                    subdirs.put(path, files);
+                }
+                files.add(new File(path, cursor.getString(1)));
             }
+            cursor.close();
+        }
+        return subdirs;
+    }
 
-            if (o1.dir && o2.dir) {
-                if (mSortBy == IAdPlugDb.SORTBY_NONE) {
-                    return 0;
+    private void findJournal(List<String> dirs, List<String> songs, List<Long> lengths) {
+        List<Cursor> cursors = queryCursors("findJournal", SQL_JOURNAL);
+        for (Cursor cursor : cursors) {
+            while (cursor.moveToNext()) {
+                if (cursor.getInt(0) == JOURNAL_DIR) {
+                    dirs.add(cursor.getString(1));
                 } else {
-                    return fileCompare(o1, o2);
+                    songs.add(cursor.getString(1));
+                    lengths.add(cursor.getLong(2));
                 }
-            } else if (o1.dir) {
-                return -1;
-            } else if (o2.dir) {
-                return 1;
-            }
-
-            int comparison = 0;
-            switch (mSortBy) {
-                case IAdPlugDb.SORTBY_NONE:
-                    break;
-                case IAdPlugDb.SORTBY_TITLE:
-                    comparison = titleCompare(o1, o2);
-                    break;
-                case IAdPlugDb.SORTBY_AUTHOR:
-                    comparison = authorCompare(o1, o2);
-                    break;
-                case IAdPlugDb.SORTBY_FILE:
-                    comparison = fileCompare(o1, o2);
-                    break;
-                case IAdPlugDb.SORTBY_TYPE:
-                    comparison = typeCompare(o1, o2);
-                    break;
-                case IAdPlugDb.SORTBY_LENGTH:
-                    comparison = lengthComparison(o1, o2);
-                    break;
-                default:
-                    break;
-            }
-
-            return comparison;
+            }
+            cursor.close();
         }
     }
 
-    private boolean hasPath(File path) {
-        String name = "";
-        if (path != null) {
-            name = path.getName().replace("'", "''");
-        }
-        SQLiteDatabase db = getWritableDatabase();
-        boolean found = false;
-
-        String sql = "SELECT rowid,* FROM " + TABLE_NAME;
-        sql = sql + " WHERE " + KEY_PATH + " = " + "'" + name + "'" + " LIMIT 1";
+    // Song name to fingerprint {modified, size}
+    private Map<String, long[]> findFingerprints(AdPlugDbShards.Shard shard, String path) {
+        Map<String, long[]> fingerprints = new HashMap<>();
         Cursor cursor = null;
         try {
-            cursor = db.rawQuery(sql, null);
+            cursor = shard.statements.query(SQL_FINGERPRINTS, path);
         } catch (android.database.SQLException e) {
-            Log.e(TAG, "hasPath: SQLException: " + e.getMessage());
+            Log.e(TAG, "findFingerprints: SQLException: " + e.getMessage());
         }
         if (cursor != null) {
-            found = cursor.moveToFirst();
+            while (cursor.moveToNext()) {
+                fingerprints.put(cursor.getString(0), new long[] {cursor.getLong(1), cursor.getLong(2)});
+            }
             cursor.close();
         }
-        return found;
+        return fingerprints;
     }
 
-    private List<AdPlugFile> recursiveIndex(File path, boolean onlist) {
-        File[] fs  = path.listFiles();
-        List<AdPlugFile> dbFiles = findString(KEY_PATH, path.getAbsolutePath());
-
-        // Delete non-existent files from DB
-        if (dbFiles.size() > 0) {
-            for (AdPlugFile dbFile : dbFiles) {
-                if (fs == null || !contains(fs, dbFile)) {
-                    deleteFromDB(dbFile);
+    // Cursors of query run on all mounted shards
+    private List<Cursor> queryCursors(final String method, final String sql, final String... args) {
+        List<Cursor> cursors = mShards.query(new AdPlugDbShards.IShardQuery<Cursor>() {
+            @Override
+            public Cursor query(AdPlugDbShards.Shard shard) {
+                try {
+                    return shard.statements.query(sql, args);
+                } catch (android.database.SQLException e) {
+                    Log.e(TAG, method + ": SQLException: " + e.getMessage());
                 }
+                return null;
             }
-        }
+        });
+        cursors.removeAll(Collections.singleton(null));
+        return cursors;
+    }
 
-        // Add directories and songs to DB
-        if (fs != null && fs.length > 0) {
-            for (File f : fs) {
-                if (f.isDirectory()) {
-                    // Recursively add directories to DB
-                    AdPlugFile song = new AdPlugFile(f.getParent(), f.getName());
-                    addToDB(song);
-                    dbFiles.add(song);
-                    if (!onlist) {
-                        recursiveIndex(f, onlist);
-                    }
-                } else if (f.isFile()) {
-                    // Request song information from AdPlug
-                    String name = f.getAbsolutePath();
-                    long length = f.length();
-                    AdPlugFile song = add(name, length, onlist);
-                    if (song != null) {
-                        dbFiles.add(song);
-                    }
-                }
+    // Songs matching query in all mounted shards, read in parallel
+    private List<AdPlugFile> queryShards(final String sql, final String... args) {
+        List<List<AdPlugFile>> results = mShards.query(new AdPlugDbShards.IShardQuery<List<AdPlugFile>>() {
+            @Override
+            public List<AdPlugFile> query(AdPlugDbShards.Shard shard) {
+                return queryDB(shard, sql, args);
             }
+        });
+        if (results.size() == 1) {
+            return results.get(0);
         }
-
-        return dbFiles;
+        List<AdPlugFile> songs = new ArrayList<>();
+        for (List<AdPlugFile> result : results) {
+            if (result != null) {
+                songs.addAll(result);
+            }
+        }
+        return songs;
     }
 
-    private List<AdPlugFile> queryDB(String sql) {
-        SQLiteDatabase db = getReadableDatabase();
-
+    // Types and authors are shared instances from dictionary of shard
+    private static List<AdPlugFile> queryDB(AdPlugDbShards.Shard shard, String sql, String... args) {
         Cursor cursor = null;
         try {
-            cursor = db.rawQuery(sql, null);
+            cursor = shard.statements.query(sql, args);
         } catch (android.database.SQLException e) {
             Log.e(TAG, "queryDB: SQLException: " + e.getMessage());
         }
@@ -613,21 +1640,7 @@ public class AdPlugDb extends SQLiteOpenHelper {
         if (cursor != null) {
             if (cursor.moveToFirst()) {
                 do {
-                    AdPlugFile song = new AdPlugFile();
-                    song.rowid = cursor.getInt(0);
-                    song.path = cursor.getString(1);
-                    song.name = cursor.getString(2);
-                    song.type = cursor.getString(3);
-                    song.title = cursor.getString(4);
-                    song.author = cursor.getString(5);
-                    song.desc = cursor.getString(6);
-                    song.length = cursor.getLong(7);
-                    song.songlength = cursor.getLong(8);
-                    song.subsongs = cursor.getInt(9);
-                    song.valid = cursor.getInt(10) != 0;
-                    song.dir = cursor.getInt(11) != 0;
-                    song.playlist = cursor.getInt(12) != 0;
-                    songs.add(song);
+                    songs.add(song(shard, cursor));
                 } while (cursor.moveToNext());
             }
             cursor.close();
@@ -635,37 +1648,35 @@ public class AdPlugDb extends SQLiteOpenHelper {
         return songs;
     }
 
-    private List<AdPlugFile> findString(String key, String value) {
-        String sql = "SELECT rowid,* FROM " + TABLE_NAME;
-        if (key == null) {
-            Log.e(TAG, "findString: invalid key");
-            return new ArrayList<>();
-        }
-        if (value != null) {
-            sql = sql + " WHERE " + key + " = " + "'" + value + "'";
-        } else {
-            sql = sql + " WHERE " + key + " IS NULL";
-        }
-        return queryDB(sql);
+    // Song of row with SONG_COLUMNS
+    private static AdPlugFile song(AdPlugDbShards.Shard shard, Cursor cursor) {
+        AdPlugFile song = new AdPlugFile();
+        song.rowid = cursor.getInt(0);
+        song.path = cursor.getString(1);
+        song.name = cursor.getString(2);
+        song.type = cursor.isNull(3) ? null : shard.statements.dictionary(TYPE_TABLE_NAME, cursor.getLong(3));
+        song.title = cursor.getString(4);
+        song.author = cursor.isNull(5) ? null : shard.statements.dictionary(AUTHOR_TABLE_NAME, cursor.getLong(5));
+        song.desc = cursor.getString(6);
+        song.length = cursor.getLong(7);
+        song.songlength = cursor.getLong(8);
+        song.subsongs = cursor.getInt(9);
+        song.valid = cursor.getInt(10) != 0;
+        song.dir = cursor.getInt(11) != 0;
+        song.playlist = cursor.getInt(12) != 0;
+        return song;
     }
 
-    private List<AdPlugFile> findInteger(String key, int value) {
-        String sql = "SELECT rowid,* FROM " + TABLE_NAME;
-        if (key == null) {
-            Log.e(TAG, "findInteger: invalid key");
+    // Songs and folders in folder, all kept in the shard of the folder, sorted in database
+    private List<AdPlugFile> findFolder(String path, int sortby, int order, boolean hide) {
+        if (path == null) {
             return new ArrayList<>();
         }
-        sql = sql + " WHERE " + key + " = " + "" + value + "";
-        return queryDB(sql);
+        return queryDB(mShards.get(path), SQL_SONGS + folderWhere(hide) + orderBy(sortby, order, false), folderArgs(path, sortby));
     }
 
-    private List<AdPlugFile> findSong(AdPlugFile song) {
-        String path = song.path.replace("'", "''");
-        String name = song.name.replace("'", "''");
-        String sql = "SELECT rowid,* FROM " + TABLE_NAME;
-        sql = sql + " WHERE " + KEY_PATH + " = " + "'" + path + "'";
-        sql = sql + " AND " + KEY_NAME + " = " + "'" + name + "'";
-        return queryDB(sql);
+    private List<AdPlugFile> findPlaylists() {
+        return queryShards(SQL_PLAYLISTS, "1");
     }
 
     private void updateStatus(dbStatus status) {
@@ -675,103 +1686,67 @@ public class AdPlugDb extends SQLiteOpenHelper {
         }
     }
 
-    private boolean addToDB(AdPlugFile song) {
-        SQLiteDatabase db = getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        values.put(KEY_PATH, song.path);
-        values.put(KEY_NAME, song.name);
-        values.put(KEY_TYPE, song.type);
-        values.put(KEY_TITLE, song.title);
-        values.put(KEY_AUTHOR, song.author);
-        values.put(KEY_DESC, song.desc);
-        values.put(KEY_LENGTH, song.length);
-        values.put(KEY_SONGLENGTH, song.songlength);
-        values.put(KEY_SUBSONGS, song.subsongs);
-        values.put(KEY_VALID, (int) (song.valid ? 1 : 0));
-        values.put(KEY_DIR, (int) (song.dir ? 1 : 0));
-        values.put(KEY_PLAYLIST, (int) (song.playlist ? 1: 0));
-
-        List<AdPlugFile> songs = findSong(song);
-        long row = 0;
-
-        try {
-            // Duplicate files are not allowed, remove
-            if (songs.size() > 1) {
-                deleteFromDB(song);
-                songs.clear();
-            }
-
-            // Add new database entry if none currently existing
-            if (songs.isEmpty()) {
-                row = db.insert(TABLE_NAME, null, values);
+    private void addToDB(AdPlugFile song) {
+        long modified = 0;
+        long size = 0;
+        if (!song.dir) {
+            AdPlugDbScanner.Stat stat = AdPlugDbScanner.Stat.of(song.getFile());
+            if (stat != null) {
+                modified = stat.modified;
+                size = stat.length;
             }
-        } catch (android.database.SQLException e) {
-            Log.e(TAG, "addToDB: SQLException: " + e.getMessage());
         }
-
-        return (row >= 0);
+        mListCache.invalidate(song.path);
+        mShards.writer(song.path).insert(song, modified, size);
     }
 
-    private boolean deleteFromDB(AdPlugFile song) {
-        SQLiteDatabase db = getWritableDatabase();
-
-        String path = song.path.replace("'", "''");
-        String name = song.name.replace("'", "''");
-        String whereClause = KEY_PATH + " = " + "'" + path + "'" + " AND " + KEY_NAME + " = " + "'" + name + "'";
-
-        int rows = 0;
-        try {
-            rows = db.delete(TABLE_NAME, whereClause, null);
-        } catch (android.database.SQLException e) {
-            Log.e(TAG, "delete: SQLException: " + e.getMessage());
+    private void addToDB(List<AdPlugFile> songs) {
+        long[] modified = new long[songs.size()];
+        long[] size = new long[songs.size()];
+        for (int i = 0; i < songs.size(); i++) {
+            mListCache.invalidate(songs.get(i).path);
+            AdPlugDbScanner.Stat stat = AdPlugDbScanner.Stat.of(songs.get(i).getFile());
+            if (stat != null) {
+                modified[i] = stat.modified;
+                size[i] = stat.length;
+            }
         }
-        return (rows >= 1);
-    }
-
-    private boolean renameInDB(int rowid, AdPlugFile song) {
-        SQLiteDatabase db = getWritableDatabase();
-
-        ContentValues values = new ContentValues();
-        String path = song.path.replace("'", "''");
-        String name = song.name.replace("'", "''");
-        values.put(KEY_PATH, path);
-        values.put(KEY_NAME, name);
-
-        String whereClause = "rowid = " + rowid;
-
-        int rows = 0;
-        try {
-            rows = db.update(TABLE_NAME, values, whereClause, null);
-        } catch (android.database.SQLException e) {
-            Log.e(TAG, "update: SQLException: " + e.getMessage());
+        AdPlugDbShards.Shard shard = mShards.get(songs.isEmpty() ? null : songs.get(0).path);
+        for (AdPlugFile song : songs) {
+            if (mShards.get(song.path) != shard) {
+                // Songs on different storage volumes, one transaction for each shard
+                for (int i = 0; i < songs.size(); i++) {
+                    mShards.writer(songs.get(i).path).insert(songs.get(i), modified[i], size[i]);
+                }
+                mShards.flush();
+                return;
+            }
         }
-        return (rows >= 1);
+        shard.writer.insert(songs, modified, size);
     }
 
-    private static boolean isPlaylist(File file) {
-        return (file != null) && !file.isDirectory() && file.getName().endsWith(".m3u");
+    private void deleteFromDB(AdPlugFile song) {
+        mListCache.invalidate(song.path);
+        mShards.writer(song.path).delete(song);
     }
 
-    private static boolean contains(File[] array, AdPlugFile value) {
-        for (File element : array) {
-            File f = new File(value.path, value.name);
-            if (element != null && element.equals(f)) {
-                return true;
-            }
+    private void renameInDB(AdPlugFile before, AdPlugFile after) {
+        // Folders below renamed folder are listed by their new paths
+        mListCache.invalidate(before.path);
+        mListCache.invalidate(after.path);
+        mListCache.invalidateTree(before.getFullPath());
+        mListCache.invalidateTree(after.getFullPath());
+        AdPlugDbShards.Shard shard = mShards.get(before.path);
+        if (mShards.get(after.path) != shard) {
+            // Moved to another storage volume, target is indexed when listed
+            Log.w(TAG, "renameInDB: moved between storage volumes: " + before.getFullPath() + ", " + after.getFullPath());
+            removeTree(before.getFullPath());
+            return;
         }
-        return false;
+        shard.writer.rename(before, after);
     }
 
-    private static boolean contains(List<AdPlugFile> array, File value) {
-        for (AdPlugFile element : array) {
-            if (element != null) {
-                File f = new File(element.path, element.name);
-                if (f.equals(value)) {
-                    return true;
-                }
-            }
-        }
-        return false;
+    private static boolean isPlaylist(File file) {
+        return (file != null) && !file.isDirectory() && file.getName().endsWith(".m3u");
     }
 }
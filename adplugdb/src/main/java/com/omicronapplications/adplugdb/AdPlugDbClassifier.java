@@ -0,0 +1,121 @@
+package com.omicronapplications.adplugdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+// Fast check of file extension, and optionally file header, before requesting song information from AdPlug
+class AdPlugDbClassifier {
+    private static final String TAG = "AdPlugDbClassifier";
+    private static final int HEADER_SIZE = 48;
+    private static final String PLAYLIST = "m3u";
+    private final Set<String> mExtensions;
+    private final Map<String, Magic> mMagics;
+    private volatile boolean mSniff;
+
+    // Signature at fixed offset, only for extensions used by a single format
+    private static class Magic {
+        final int offset;
+        final byte[] signature;
+
+        Magic(int offset, String signature) {
+            this.offset = offset;
+            this.signature = new byte[signature.length()];
+            for (int i = 0; i < signature.length(); i++) {
+                this.signature[i] = (byte) signature.charAt(i);
+            }
+        }
+
+        boolean matches(byte[] header, int length) {
+            if (offset + signature.length > length) {
+                return false;
+            }
+            for (int i = 0; i < signature.length; i++) {
+                if (header[offset + i] != signature[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    AdPlugDbClassifier(String[] extensions) {
+        mExtensions = new HashSet<>(Arrays.asList(extensions));
+        mExtensions.add(PLAYLIST);
+        mMagics = new HashMap<>();
+        mMagics.put("a2m", new Magic(0, "_A2module_"));
+        mMagics.put("cmf", new Magic(0, "CTMF"));
+        mMagics.put("dro", new Magic(0, "DBRAWOPL"));
+        mMagics.put("dtm", new Magic(0, "DeFy DTM "));
+        mMagics.put("rad", new Magic(0, "RAD by REALiTY!!"));
+        mMagics.put("s3m", new Magic(44, "SCRM"));
+        mMagics.put("sa2", new Magic(0, "SAdT"));
+        mMagics.put("vgm", new Magic(0, "Vgm "));
+        mMagics.put("vgz", new Magic(0, "\u001f\u008b"));
+        mSniff = false;
+    }
+
+    void setSniffHeaders(boolean sniff) {
+        mSniff = sniff;
+    }
+
+    // Returns false if AdPlug is not able to play file
+    boolean isSupported(File f) {
+        String extension = getExtension(f.getName());
+        if (extension == null || !mExtensions.contains(extension)) {
+            return false;
+        }
+        if (!mSniff) {
+            return true;
+        }
+        Magic magic = mMagics.get(extension);
+        if (magic == null) {
+            return true;
+        }
+        byte[] header = new byte[HEADER_SIZE];
+        int length = readHeader(f, header);
+        return (length < 0) || magic.matches(header, length);
+    }
+
+    private static String getExtension(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot == name.length() - 1) {
+            return null;
+        }
+        return name.substring(dot + 1).toLowerCase(Locale.US);
+    }
+
+    // Number of header bytes read, or -1 if file could not be read
+    private static int readHeader(File f, byte[] header) {
+        InputStream is = null;
+        try {
+            is = new FileInputStream(f);
+            int length = 0;
+            int n;
+            while (length < header.length && (n = is.read(header, length, header.length - length)) > 0) {
+                length += n;
+            }
+            return length;
+        } catch (IOException e) {
+            Log.e(TAG, "readHeader: IOException: " + e.getMessage());
+            return -1;
+        } finally {
+            if (is != null) {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "readHeader: IOException: " + e.getMessage());
+                }
+            }
+        }
+    }
+}
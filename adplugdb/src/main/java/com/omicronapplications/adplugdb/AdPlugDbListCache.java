@@ -0,0 +1,168 @@
+package com.omicronapplications.adplugdb;
+
+import android.util.LruCache;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Recently listed folders, by folder, sort criterion, sort order and hidden files. Listings are
+// invalidated when songs or folders in folder are written, and cache size is bounded by number
+// of songs and folders held.
+class AdPlugDbListCache {
+    static final int MAX_SONGS = 20000;
+    private final LruCache<Key, List<AdPlugFile>> mCache;
+    // Number of listings of each folder, for invalidating folders not cached without a lookup
+    private final Map<String, Integer> mPaths;
+    private long mGeneration;
+
+    private static class Key {
+        final String path;
+        final int sortby;
+        final int order;
+        final boolean hide;
+
+        Key(String path, int sortby, int order, boolean hide) {
+            this.path = path;
+            this.sortby = sortby;
+            this.order = order;
+            this.hide = hide;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) obj;
+            return path.equals(other.path) && sortby == other.sortby && order == other.order && hide == other.hide;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = path.hashCode();
+            hash = 31 * hash + sortby;
+            hash = 31 * hash + order;
+            return 31 * hash + (hide ? 1 : 0);
+        }
+    }
+
+    AdPlugDbListCache(int maxSongs) {
+        mPaths = new HashMap<>();
+        mCache = new LruCache<Key, List<AdPlugFile>>(maxSongs) {
+            @Override
+            protected int sizeOf(Key key, List<AdPlugFile> songs) {
+                return songs.size() + 1;
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, Key key, List<AdPlugFile> oldValue, List<AdPlugFile> newValue) {
+                if (newValue == null) {
+                    removed(key.path);
+                }
+            }
+        };
+    }
+
+    // Copy of listing, or null if not cached
+    List<AdPlugFile> get(String path, int sortby, int order, boolean hide) {
+        if (path == null) {
+            return null;
+        }
+        List<AdPlugFile> songs = mCache.get(new Key(path, sortby, order, hide));
+        return (songs != null) ? new ArrayList<>(songs) : null;
+    }
+
+    // Invalidation count, taken before folder is read from database
+    synchronized long generation() {
+        return mGeneration;
+    }
+
+    // Listing read from database, dropped if folder may have been written since generation
+    void put(String path, int sortby, int order, boolean hide, List<AdPlugFile> songs, long generation) {
+        if (path == null) {
+            return;
+        }
+        synchronized (this) {
+            if (generation != mGeneration) {
+                return;
+            }
+            if (mCache.put(new Key(path, sortby, order, hide), new ArrayList<>(songs)) == null) {
+                Integer count = mPaths.get(path);
+                mPaths.put(path, (count != null) ? count + 1 : 1);
+            }
+        }
+    }
+
+    // Listings of folder
+    synchronized void invalidate(String path) {
+        mGeneration++;
+        if (!mPaths.containsKey(path)) {
+            return;
+        }
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.path.equals(path)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    // Listings of folder and all folders below
+    synchronized void invalidateTree(String path) {
+        mGeneration++;
+        String prefix = path + "/";
+        for (Key key : mCache.snapshot().keySet()) {
+            if (key.path.equals(path) || key.path.startsWith(prefix)) {
+                mCache.remove(key);
+            }
+        }
+    }
+
+    // Folders in folder, with listings cached of them or of folders below
+    synchronized List<String> subfolders(String path) {
+        List<String> folders = new ArrayList<>();
+        String prefix = path + "/";
+        for (String folder : mPaths.keySet()) {
+            if (folder.startsWith(prefix)) {
+                int end = folder.indexOf('/', prefix.length());
+                folder = (end < 0) ? folder : folder.substring(0, end);
+                if (!folders.contains(folder)) {
+                    folders.add(folder);
+                }
+            }
+        }
+        return folders;
+    }
+
+    synchronized void clear() {
+        mGeneration++;
+        mCache.evictAll();
+    }
+
+    // Called from cache with lock held
+    private void removed(String path) {
+        Integer count = mPaths.get(path);
+        if (count == null || count <= 1) {
+            mPaths.remove(path);
+        } else {
+            mPaths.put(path, count - 1);
+        }
+    }
+
+    int hitCount() {
+        return mCache.hitCount();
+    }
+
+    int missCount() {
+        return mCache.missCount();
+    }
+
+    // Songs and folders held, and one for each listing
+    int size() {
+        return mCache.size();
+    }
+}
@@ -0,0 +1,256 @@
+package com.omicronapplications.adplugdb;
+
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+// Song information read directly from file headers, for formats with metadata at fixed offsets.
+// Song length is not known without playing the song, and is returned as -1, so that these songs
+// sort before all others by SORTBY_LENGTH in ascending order.
+class AdPlugDbMetadata {
+    private static final String TAG = "AdPlugDbMetadata";
+    private static final int HEADER_SIZE = 128;
+    private static final int MAX_DESC = 1024;
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+    private final Map<String, IMetadataExtractor> mExtractors;
+
+    interface IMetadataExtractor {
+        // Song information from header, or null if not recognised. Further bytes may be read from channel.
+        AdPlugFile extract(File f, long length, ByteBuffer header, FileChannel channel) throws IOException;
+    }
+
+    AdPlugDbMetadata() {
+        mExtractors = new HashMap<>();
+        register("d00", new D00Extractor());
+        register("rad", new RadExtractor());
+        register("hsc", new HscExtractor());
+        register("a2m", new A2mExtractor());
+    }
+
+    void register(String extension, IMetadataExtractor extractor) {
+        mExtractors.put(extension, extractor);
+    }
+
+    // Song information, or null if song needs to be requested from AdPlug
+    AdPlugFile extract(File f, long length) {
+        String name = f.getName();
+        int dot = name.lastIndexOf('.');
+        IMetadataExtractor extractor = (dot >= 0) ? mExtractors.get(name.substring(dot + 1).toLowerCase(Locale.US)) : null;
+        if (extractor == null) {
+            return null;
+        }
+        FileInputStream fis = null;
+        try {
+            fis = new FileInputStream(f);
+            FileChannel channel = fis.getChannel();
+            ByteBuffer header = read(channel, 0, HEADER_SIZE);
+            return extractor.extract(f, length, header, channel);
+        } catch (IOException e) {
+            Log.e(TAG, "extract: IOException: " + e.getMessage());
+        } finally {
+            if (fis != null) {
+                try {
+                    fis.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "extract: IOException: " + e.getMessage());
+                }
+            }
+        }
+        return null;
+    }
+
+    private static ByteBuffer read(FileChannel channel, long position, int size) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) <= 0) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static boolean startsWith(ByteBuffer header, String id) {
+        if (header.limit() < id.length()) {
+            return false;
+        }
+        for (int i = 0; i < id.length(); i++) {
+            if (header.get(i) != (byte) id.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Fixed length string, terminated by NUL. Trailing spaces are kept, as by AdPlug.
+    private static String string(ByteBuffer buffer, int offset, int size) {
+        int end = offset;
+        while (end < offset + size && end < buffer.limit() && buffer.get(end) != 0) {
+            end++;
+        }
+        byte[] bytes = new byte[end - offset];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + i);
+        }
+        return new String(bytes, CHARSET);
+    }
+
+    private static AdPlugFile song(File f, String type, String title, String author, String desc, long length, int subsongs) {
+        return new AdPlugFile(f.getParent(), f.getName(), type, title, author, desc, length, -1, subsongs, true, false);
+    }
+
+    // EdLib packed, version 2 and above. Version 1 has no identifier, and is requested from AdPlug.
+    private static class D00Extractor implements IMetadataExtractor {
+        private static final String ID = "JCH&\u0002f";
+
+        @Override
+        public AdPlugFile extract(File f, long length, ByteBuffer header, FileChannel channel) throws IOException {
+            if (header.limit() < 119 || !startsWith(header, ID) || header.get(6) != 0) {
+                return null;
+            }
+            int version = header.get(7) & 0xff;
+            int subsongs = header.get(9) & 0xff;
+            String title = string(header, 11, 32);
+            String author = string(header, 43, 32);
+            int infoptr = header.getShort(113) & 0xffff;
+            return song(f, "EdLib packed (version " + version + ")", title, author, desc(channel, infoptr), length, subsongs);
+        }
+
+        // Description ends with 0xff 0xff, preceded by any padding
+        private static String desc(FileChannel channel, int infoptr) throws IOException {
+            ByteBuffer buffer = read(channel, infoptr, MAX_DESC);
+            int end = 0;
+            while (end < buffer.limit() && buffer.get(end) != 0) {
+                if (end + 1 < buffer.limit() && buffer.get(end) == (byte) 0xff && buffer.get(end + 1) == (byte) 0xff) {
+                    break;
+                }
+                end++;
+            }
+            while (end > 0 && (buffer.get(end - 1) == ' ' || buffer.get(end - 1) == (byte) 0xff)) {
+                end--;
+            }
+            return string(buffer, 0, end);
+        }
+    }
+
+    // Reality ADlib Tracker, with optional description following header
+    private static class RadExtractor implements IMetadataExtractor {
+        private static final String ID = "RAD by REALiTY!!";
+
+        @Override
+        public AdPlugFile extract(File f, long length, ByteBuffer header, FileChannel channel) throws IOException {
+            if (header.limit() < 18 || !startsWith(header, ID) || header.get(16) != 0x10) {
+                return null;
+            }
+            String desc = "";
+            if ((header.get(17) & 0x80) != 0) {
+                // 0x01 is a line feed, 0x02-0x1f that many spaces
+                ByteBuffer buffer = read(channel, 18, MAX_DESC);
+                StringBuilder sb = new StringBuilder();
+                while (buffer.hasRemaining()) {
+                    int c = buffer.get() & 0xff;
+                    if (c == 0) {
+                        break;
+                    } else if (c == 1) {
+                        sb.append('\n');
+                    } else if (c < 0x20) {
+                        for (int i = 0; i < c; i++) {
+                            sb.append(' ');
+                        }
+                    } else {
+                        sb.append((char) c);
+                    }
+                }
+                desc = sb.toString();
+            }
+            return song(f, "Reality ADlib Tracker", "", "", desc, length, 1);
+        }
+    }
+
+    // HSC-Tracker, without any text in file. Recognised by instruments, order list and pattern sizes:
+    // 128 instruments of 12 bytes, 51 byte order list, and up to 50 patterns of 64 rows for 9
+    // channels, 2 bytes each. Files in doubt are requested from AdPlug.
+    private static class HscExtractor implements IMetadataExtractor {
+        private static final int INSTRUMENTS = 128;
+        private static final int INSTRUMENT_SIZE = 12;
+        private static final int ORDERS = 51;
+        private static final int MAX_PATTERNS = 50;
+        private static final int PATTERN_SIZE = 64 * 9 * 2;
+        private static final int HEADER = INSTRUMENTS * INSTRUMENT_SIZE + ORDERS;
+
+        @Override
+        public AdPlugFile extract(File f, long length, ByteBuffer header, FileChannel channel) throws IOException {
+            long size = channel.size();
+            if (size < HEADER + PATTERN_SIZE || size > HEADER + MAX_PATTERNS * PATTERN_SIZE || (size - HEADER) % PATTERN_SIZE != 0) {
+                return null;
+            }
+            int patterns = (int) ((size - HEADER) / PATTERN_SIZE);
+            ByteBuffer buffer = read(channel, 0, HEADER);
+            if (buffer.limit() < HEADER) {
+                return null;
+            }
+            // Feedback and connection in low nibble, OPL2 waveforms 0-3
+            for (int i = 0; i < INSTRUMENTS; i++) {
+                int offset = i * INSTRUMENT_SIZE;
+                if ((buffer.get(offset + 8) & 0xf0) != 0 || (buffer.get(offset + 9) & 0xff) > 3 || (buffer.get(offset + 10) & 0xff) > 3) {
+                    return null;
+                }
+            }
+            // Order list ends with 0xff, and entries other than that refer to patterns in file
+            int orders = 0;
+            for (int i = 0; i < ORDERS; i++) {
+                int order = buffer.get(INSTRUMENTS * INSTRUMENT_SIZE + i) & 0xff;
+                if (order == 0xff) {
+                    break;
+                }
+                if ((order & 0x7f) >= patterns) {
+                    return null;
+                }
+                orders++;
+            }
+            if (orders == 0) {
+                return null;
+            }
+            return song(f, "HSC Adlib Composer / HSC-Tracker", "", "", "", length, 1);
+        }
+    }
+
+    // AdLib Tracker 2, with song name and author as Pascal strings at start of first block. Only
+    // file format versions 1 and 5 store the first block uncompressed, other versions are requested
+    // from AdPlug.
+    private static class A2mExtractor implements IMetadataExtractor {
+        private static final String ID = "_A2module_";
+
+        @Override
+        public AdPlugFile extract(File f, long length, ByteBuffer header, FileChannel channel) throws IOException {
+            if (header.limit() < 16 || !startsWith(header, ID)) {
+                return null;
+            }
+            int version = header.get(14) & 0xff;
+            int offset;
+            if (version == 1) {
+                offset = 16 + 5 * 2;
+            } else if (version == 5) {
+                offset = 16 + 9 * 2;
+            } else {
+                return null;
+            }
+            if (header.limit() < offset + 2 * 43) {
+                return null;
+            }
+            String title = string(header, offset + 1, Math.min(header.get(offset) & 0xff, 42));
+            String author = string(header, offset + 44, Math.min(header.get(offset + 43) & 0xff, 42));
+            return song(f, "AdLib Tracker 2", title, author, "", length, 1);
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.omicronapplications.adplugdb;
+
+import android.os.Build;
+import android.system.ErrnoException;
+import android.system.Os;
+import android.system.OsConstants;
+import android.system.StructStat;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+
+class AdPlugDbScanner {
+    private static final String TAG = "AdPlugDbScanner";
+    private static final long POLL_TIMEOUT = 10; // ms
+    static final int DEFAULT_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private volatile int mParallelism;
+
+    interface IScanCallback {
+        // Known subdirectories if path is unchanged since last scan, or null to list path. Called from any thread.
+        File[] getSubdirectories(File path, long modified);
+        void onDirectory(Directory directory);
+    }
+
+    static class Directory {
+        final File path;
+        final long modified;
+        final boolean unchanged;
+        final File[] files;
+        final boolean[] dirs;
+        final long[] lengths;
+        final long[] modifieds;
+
+        Directory(File path, long modified, boolean unchanged, File[] files, boolean[] dirs, long[] lengths, long[] modifieds) {
+            this.path = path;
+            this.modified = modified;
+            this.unchanged = unchanged;
+            this.files = files;
+            this.dirs = dirs;
+            this.lengths = lengths;
+            this.modifieds = modifieds;
+        }
+    }
+
+    static class Stat {
+        final boolean dir;
+        final boolean file;
+        final long length;
+        final long modified;
+
+        Stat(boolean dir, boolean file, long length, long modified) {
+            this.dir = dir;
+            this.file = file;
+            this.length = length;
+            this.modified = modified;
+        }
+
+        // File attributes, using a single stat() call where available
+        static Stat of(File f) {
+            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+                return osStat(f);
+            }
+            if (!f.exists()) {
+                return null;
+            }
+            boolean dir = f.isDirectory();
+            boolean file = !dir && f.isFile();
+            return new Stat(dir, file, file ? f.length() : 0, f.lastModified());
+        }
+
+        @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+        private static Stat osStat(File f) {
+            try {
+                StructStat st = Os.stat(f.getPath());
+                int mode = (int) st.st_mode;
+                boolean dir = OsConstants.S_ISDIR(mode);
+                boolean file = OsConstants.S_ISREG(mode);
+                return new Stat(dir, file, file ? st.st_size : 0, st.st_mtime * 1000);
+            } catch (ErrnoException e) {
+                return null;
+            }
+        }
+    }
+
+    AdPlugDbScanner() {
+        mParallelism = DEFAULT_PARALLELISM;
+    }
+
+    void setParallelism(int parallelism) {
+        mParallelism = parallelism;
+    }
+
+    int getParallelism() {
+        return mParallelism;
+    }
+
+    // Scan path, and all subdirectories if recursive. Directories are delivered on the calling thread.
+    void scan(File path, boolean recursive, IScanCallback callback) {
+        if (path == null || callback == null) {
+            Log.w(TAG, "scan: invalid arguments: " + path + ", " + callback);
+            return;
+        }
+        if (recursive && mParallelism > 1 && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            parallelScan(path, callback);
+        } else {
+            serialScan(path, recursive, callback);
+        }
+    }
+
+    private void serialScan(File path, boolean recursive, IScanCallback callback) {
+        Directory directory = scanDirectory(path, callback);
+        callback.onDirectory(directory);
+        if (recursive && directory.files != null) {
+            for (int i = 0; i < directory.files.length; i++) {
+                if (directory.dirs[i]) {
+                    serialScan(directory.files[i], true, callback);
+                }
+            }
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private void parallelScan(File path, IScanCallback callback) {
+        BlockingQueue<Directory> queue = new LinkedBlockingQueue<>();
+        ForkJoinPool pool = new ForkJoinPool(mParallelism);
+        try {
+            ForkJoinTask<Void> task = pool.submit(new ScanTask(path, callback, queue));
+            while (!task.isDone() || !queue.isEmpty()) {
+                Directory directory = queue.poll(POLL_TIMEOUT, TimeUnit.MILLISECONDS);
+                if (directory != null) {
+                    callback.onDirectory(directory);
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.e(TAG, "parallelScan: InterruptedException: " + e.getMessage());
+            Thread.currentThread().interrupt();
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+    private static class ScanTask extends RecursiveAction {
+        private final File mPath;
+        private final IScanCallback mCallback;
+        private final BlockingQueue<Directory> mQueue;
+
+        ScanTask(File path, IScanCallback callback, BlockingQueue<Directory> queue) {
+            mPath = path;
+            mCallback = callback;
+            mQueue = queue;
+        }
+
+        @Override
+        protected void compute() {
+            Directory directory = scanDirectory(mPath, mCallback);
+            mQueue.add(directory);
+            if (directory.files == null) {
+                return;
+            }
+            List<ScanTask> tasks = new ArrayList<>();
+            for (int i = 0; i < directory.files.length; i++) {
+                if (directory.dirs[i]) {
+                    tasks.add(new ScanTask(directory.files[i], mCallback, mQueue));
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private static Directory scanDirectory(File path, IScanCallback callback) {
+        Stat stat = Stat.of(path);
+        long modified = (stat != null) ? stat.modified : 0;
+
+        // Skip listing unchanged directories, only descend into known subdirectories
+        File[] subdirs = callback.getSubdirectories(path, modified);
+        if (subdirs != null) {
+            boolean[] dirs = new boolean[subdirs.length];
+            Arrays.fill(dirs, true);
+            return new Directory(path, modified, true, subdirs, dirs, new long[subdirs.length], new long[subdirs.length]);
+        }
+
+        File[] fs = null;
+        try {
+            fs = path.listFiles();
+        } catch (SecurityException e) {
+            Log.e(TAG, "scanDirectory: SecurityException: " + e.getMessage());
+        }
+        if (fs == null) {
+            return new Directory(path, modified, false, null, null, null, null);
+        }
+
+        File[] files = new File[fs.length];
+        boolean[] dirs = new boolean[fs.length];
+        long[] lengths = new long[fs.length];
+        long[] modifieds = new long[fs.length];
+        int count = 0;
+        for (File f : fs) {
+            Stat st = Stat.of(f);
+            if (st != null && (st.dir || st.file)) {
+                files[count] = f;
+                dirs[count] = st.dir;
+                lengths[count] = st.length;
+                modifieds[count] = st.modified;
+                count++;
+            }
+        }
+        if (count < fs.length) {
+            files = Arrays.copyOf(files, count);
+            dirs = Arrays.copyOf(dirs, count);
+            lengths = Arrays.copyOf(lengths, count);
+            modifieds = Arrays.copyOf(modifieds, count);
+        }
+        return new Directory(path, modified, false, files, dirs, lengths, modifieds);
+    }
+}
@@ -0,0 +1,88 @@
+package com.omicronapplications.adplugdb;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Comparator;
+
+// Full-text query builder and relevance ranking. Queries are split into terms the same way as the
+// simple tokenizer of the full-text index, and each term is matched as a quoted prefix, so that
+// no query text is read as query syntax.
+class AdPlugDbSearch {
+    // Relevance of a match in file name, title, author, description and folder path columns
+    private static final double[] WEIGHTS = {1.0, 2.0, 1.5, 0.5, 0.25};
+
+    static class Match {
+        final long id;
+        final double score;
+        AdPlugFile song;
+
+        Match(long id, double score) {
+            this.id = id;
+            this.score = score;
+        }
+    }
+
+    // Highest score first, then by id
+    static final Comparator<Match> BY_SCORE = new Comparator<Match>() {
+        @Override
+        public int compare(Match o1, Match o2) {
+            int comparison = Double.compare(o2.score, o1.score);
+            if (comparison == 0 && o1.id != o2.id) {
+                comparison = (o1.id < o2.id) ? -1 : 1;
+            }
+            return comparison;
+        }
+    };
+
+    private AdPlugDbSearch() {
+    }
+
+    // Prefix match of all terms in query, or null if query has no terms. Terms are left to the
+    // tokenizer to fold case, which folds ASCII letters only, as in the index.
+    static String match(String query) {
+        if (query == null) {
+            return null;
+        }
+        StringBuilder match = new StringBuilder();
+        int start = -1;
+        for (int i = 0; i <= query.length(); i++) {
+            boolean token = (i < query.length()) && isTokenChar(query.charAt(i));
+            if (token && start < 0) {
+                start = i;
+            } else if (!token && start >= 0) {
+                if (match.length() > 0) {
+                    match.append(' ');
+                }
+                match.append('"').append(query.substring(start, i)).append("*\"");
+                start = -1;
+            }
+        }
+        return (match.length() > 0) ? match.toString() : null;
+    }
+
+    // Score from matchinfo 'pcx': for each phrase and column, hits in row divided by hits in all rows
+    static double rank(byte[] matchinfo) {
+        IntBuffer ints = ByteBuffer.wrap(matchinfo).order(ByteOrder.nativeOrder()).asIntBuffer();
+        int phrases = ints.get(0);
+        int columns = ints.get(1);
+        double score = 0;
+        for (int p = 0; p < phrases; p++) {
+            for (int c = 0; c < columns; c++) {
+                int x = 2 + 3 * (c + p * columns);
+                int hits = ints.get(x);
+                int total = ints.get(x + 1);
+                if (hits > 0 && total > 0) {
+                    double weight = (c < WEIGHTS.length) ? WEIGHTS[c] : 1.0;
+                    score += weight * hits / total;
+                }
+            }
+        }
+        return score;
+    }
+
+    // Characters other than ASCII letters and digits separate terms, as in simple tokenizer
+    private static boolean isTokenChar(char c) {
+        return (c >= 0x80) || (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+}
@@ -1,7 +1,9 @@
 package com.omicronapplications.adplugdb;
 
 import android.app.Service;
+import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
@@ -13,6 +15,9 @@ import android.os.Message;
 import android.util.Log;
 
 import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 public class AdPlugDbService extends Service implements IAdPlugDb {
     private static final String TAG = "AdPlugDbService";
@@ -28,11 +33,28 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
     private static final int ADPLUGDB_GETCOUNT = 10;
     private static final int ADPLUGDB_SEARCH = 11;
     private static final int ADPLUGDB_ONSONGINFO = 12;
+    private static final int ADPLUGDB_PARALLELISM = 13;
+    private static final int ADPLUGDB_FLUSH = 14;
+    private static final int ADPLUGDB_ONSONGINFOBATCH = 15;
+    private static final int ADPLUGDB_INFOBATCHSIZE = 16;
+    private static final int ADPLUGDB_GETPROGRESS = 17;
+    private static final int ADPLUGDB_SNIFFHEADERS = 18;
+    private static final int ADPLUGDB_FASTMETADATA = 19;
+    private static final int ADPLUGDB_WATCH = 20;
+    private static final int ADPLUGDB_REMOVETREE = 21;
+    private static final int ADPLUGDB_REMOVEALL = 22;
+    private static final int ADPLUGDB_EXPORT = 23;
+    private static final int ADPLUGDB_IMPORT = 24;
+    private static final int ADPLUGDB_LISTPAGE = 25;
+    private static final int ADPLUGDB_GETCACHESTATS = 26;
+    private static final int ADPLUGDB_SHUFFLESEED = 27;
     private static final String BUNDLE_PATH = "path";
     private static final String BUNDLE_QUICK = "quick";
     private static final String BUNDLE_HIDE = "hide";
     private static final String BUNDLE_RANDOM = "random";
     private static final String BUNDLE_SONG = "song";
+    private static final String BUNDLE_SONGS = "songs";
+    private static final String BUNDLE_FILE = "file";
     private static final String BUNDLE_QUERY = "query";
     private static final String BUNDLE_TYPE = "type";
     private static final String BUNDLE_TITLE = "title";
@@ -47,17 +69,33 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
     private static final String BUNDLE_PLAYLIST = "playlist";
     private static final String BUNDLE_SORTBY = "sortby";
     private static final String BUNDLE_ORDER = "order";
+    private static final String BUNDLE_PARALLELISM = "parallelism";
+    private static final String BUNDLE_BATCHSIZE = "batchsize";
+    private static final String BUNDLE_SNIFF = "sniff";
+    private static final String BUNDLE_FAST = "fast";
+    private static final String BUNDLE_WATCH = "watch";
+    private static final String BUNDLE_OFFSET = "offset";
+    private static final String BUNDLE_LIMIT = "limit";
+    private static final String BUNDLE_SEED = "seed";
+    private static final String PREFS_NAME = "AdPlugDbService";
+    private static final String PREFS_WATCH = "watch";
+    private static final String PREFS_ROOT = "root";
     private AdPlugDbBinder mBinder;
     private HandlerThread mThread;
     private Handler.Callback mHandlerCallback;
     private Handler mHandler;
     private HandlerThread mIndexThread;
     private Runnable mIndexRunner;
+    private Runnable mResumeRunner;
+    private Runnable mWatchRunner;
     private Handler mIndexHandler;
+    private AdPlugDbWatcher mWatcher;
+    private volatile boolean mWatch;
+    private SharedPreferences mPrefs;
     private IAdPlugDbCallback mCallback;
     // DbIndexRunner/DbIndexRunner variables
     private AdPlugDb mDB;
-    private File mRoot;
+    private volatile File mRoot;
     private boolean mQuick;
 
     public final class AdPlugDbBinder extends Binder {
@@ -71,6 +109,45 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
         public void run() {
             if (mDB != null) {
                 mDB.index(mRoot, mQuick);
+                if (mWatch && mWatcher != null) {
+                    mWatcher.watch(mRoot);
+                }
+            }
+        }
+    }
+
+    private class DbResumeRunner implements Runnable {
+        @Override
+        public void run() {
+            if (mDB != null) {
+                mDB.resume();
+                // Re-arm watcher lost with previous service instance
+                if (mWatch && mWatcher != null && mRoot != null) {
+                    mWatcher.watch(mRoot);
+                }
+            }
+        }
+    }
+
+    private class DbWatchRunner implements Runnable {
+        @Override
+        public void run() {
+            if (mWatcher == null) {
+                return;
+            }
+            if (mWatch) {
+                mWatcher.watch(mRoot);
+            } else {
+                mWatcher.unwatch();
+            }
+        }
+    }
+
+    private class DbWatchCallback implements AdPlugDbWatcher.IWatchCallback {
+        @Override
+        public void onChanges(AdPlugDbWatcher.Changes changes) {
+            if (mDB != null) {
+                mDB.update(changes);
             }
         }
     }
@@ -85,6 +162,10 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
             switch (msg.what) {
                 case ADPLUGDB_CALLBACK:
                     mDB.setCallback(mCallback);
+                    // Continue indexing interrupted by previous service instance
+                    if (mCallback != null) {
+                        mIndexHandler.post(mResumeRunner);
+                    }
                     break;
                 case ADPLUGDB_STATUS:
                     mDB.getStatus();
@@ -94,6 +175,9 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
                     String root = data.getString(BUNDLE_PATH);
                     mRoot = getFile(root);
                     mQuick = data.getBoolean(BUNDLE_QUICK);
+                    if (mRoot != null) {
+                        mPrefs.edit().putString(PREFS_ROOT, mRoot.getPath()).apply();
+                    }
                     mIndexHandler.post(mIndexRunner);
                     break;
                 case ADPLUGDB_DELETE:
@@ -110,6 +194,16 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
                     File f = getFile(path);
                     mDB.list(f, sortby, order, quick, hide, random);
                     break;
+                case ADPLUGDB_LISTPAGE:
+                    data = msg.getData();
+                    path = data.getString(BUNDLE_PATH);
+                    sortby = data.getInt(BUNDLE_SORTBY);
+                    order = data.getInt(BUNDLE_ORDER);
+                    hide = data.getBoolean(BUNDLE_HIDE);
+                    int offset = data.getInt(BUNDLE_OFFSET);
+                    int limit = data.getInt(BUNDLE_LIMIT);
+                    mDB.listPage(getFile(path), sortby, order, hide, offset, limit);
+                    break;
                 case ADPLUGDB_PLAYLIST:
                     mDB.playlist();
                     break;
@@ -124,6 +218,26 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
                     name = data.getString(BUNDLE_SONG);
                     mDB.remove(name);
                     break;
+                case ADPLUGDB_REMOVETREE:
+                    data = msg.getData();
+                    path = data.getString(BUNDLE_PATH);
+                    mDB.removeTree(path);
+                    break;
+                case ADPLUGDB_REMOVEALL:
+                    data = msg.getData();
+                    List<String> songs = data.getStringArrayList(BUNDLE_SONGS);
+                    mDB.removeAll(songs);
+                    break;
+                case ADPLUGDB_EXPORT:
+                    data = msg.getData();
+                    String file = data.getString(BUNDLE_FILE);
+                    mDB.exportSnapshot(file);
+                    break;
+                case ADPLUGDB_IMPORT:
+                    data = msg.getData();
+                    file = data.getString(BUNDLE_FILE);
+                    mDB.importSnapshot(file);
+                    break;
                 case ADPLUGDB_RENAME:
                     data = msg.getData();
                     String before = data.getString(BUNDLE_BEFORE);
@@ -133,6 +247,12 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
                 case ADPLUGDB_GETCOUNT:
                     mDB.getCount();
                     break;
+                case ADPLUGDB_GETPROGRESS:
+                    mDB.getProgress();
+                    break;
+                case ADPLUGDB_GETCACHESTATS:
+                    mDB.getCacheStats();
+                    break;
                 case ADPLUGDB_SEARCH:
                     data = msg.getData();
                     String query = data.getString(BUNDLE_QUERY);
@@ -152,6 +272,44 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
                     boolean playlist = data.getBoolean(BUNDLE_PLAYLIST);
                     mDB.onSongInfo(name, type, title, author, desc, length, songlength, subsongs, valid, playlist);
                     break;
+                case ADPLUGDB_PARALLELISM:
+                    data = msg.getData();
+                    int parallelism = data.getInt(BUNDLE_PARALLELISM);
+                    mDB.setParallelism(parallelism);
+                    break;
+                case ADPLUGDB_FLUSH:
+                    mDB.flush();
+                    break;
+                case ADPLUGDB_ONSONGINFOBATCH:
+                    AdPlugInfoBatch batch = (AdPlugInfoBatch) msg.obj;
+                    mDB.onSongInfoBatch(batch);
+                    break;
+                case ADPLUGDB_INFOBATCHSIZE:
+                    data = msg.getData();
+                    int size = data.getInt(BUNDLE_BATCHSIZE);
+                    mDB.setInfoBatchSize(size);
+                    break;
+                case ADPLUGDB_SNIFFHEADERS:
+                    data = msg.getData();
+                    boolean sniff = data.getBoolean(BUNDLE_SNIFF);
+                    mDB.setSniffHeaders(sniff);
+                    break;
+                case ADPLUGDB_FASTMETADATA:
+                    data = msg.getData();
+                    boolean fast = data.getBoolean(BUNDLE_FAST);
+                    mDB.setFastMetadata(fast);
+                    break;
+                case ADPLUGDB_WATCH:
+                    data = msg.getData();
+                    mWatch = data.getBoolean(BUNDLE_WATCH);
+                    mPrefs.edit().putBoolean(PREFS_WATCH, mWatch).apply();
+                    mIndexHandler.post(mWatchRunner);
+                    break;
+                case ADPLUGDB_SHUFFLESEED:
+                    data = msg.getData();
+                    long seed = data.getLong(BUNDLE_SEED);
+                    mDB.setShuffleSeed(seed);
+                    break;
                 default:
                     Log.w(TAG, "handleMessage: illegal request: " + msg.what);
                     break;
@@ -163,6 +321,13 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
     @Override
     public void onCreate() {
         mDB = new AdPlugDb(getApplicationContext());
+        // Watch state of previous service instance
+        mPrefs = getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+        mWatch = mPrefs.getBoolean(PREFS_WATCH, false);
+        String root = mPrefs.getString(PREFS_ROOT, null);
+        if (root != null) {
+            mRoot = new File(root);
+        }
 
         mBinder = new AdPlugDbBinder();
         mThread = new HandlerThread("DbHandlerCallback");
@@ -174,6 +339,7 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
         Looper looper = mThread.getLooper();
         mHandlerCallback = new DbHandlerCallback();
         mHandler = new Handler(looper, mHandlerCallback);
+        mWatcher = new AdPlugDbWatcher(mHandler, new DbWatchCallback());
 
         mIndexThread = new HandlerThread("DbIndexRunner");
         try {
@@ -183,11 +349,20 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
         }
         looper = mIndexThread.getLooper();
         mIndexRunner = new DbIndexRunner();
+        mResumeRunner = new DbResumeRunner();
+        mWatchRunner = new DbWatchRunner();
         mIndexHandler = new Handler(looper);
     }
 
     @Override
     public void onDestroy() {
+        if (mWatcher != null) {
+            mWatcher.unwatch();
+            mWatcher = null;
+        }
+        if (mDB != null) {
+            mDB.flush();
+        }
         mDB = null;
 
         if (mHandler != null) {
@@ -232,17 +407,28 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
     }
 
     private void sendMessageToAdPlugDb(int what, Bundle data) {
+        sendMessageToAdPlugDb(what, data, null);
+    }
+
+    private void sendMessageToAdPlugDb(int what, Bundle data, Object obj) {
         if (mHandler != null) {
-            Message msg = mHandler.obtainMessage(what);
+            Message msg = mHandler.obtainMessage(what, obj);
             if (data != null) {
                 msg.setData(data);
             }
             if (what == ADPLUGDB_STATUS || what == ADPLUGDB_INDEX ||
                     what == ADPLUGDB_DELETE || what == ADPLUGDB_PLAYLIST ||
-                    what == ADPLUGDB_LIST || what == ADPLUGDB_GETCOUNT) {
+                    what == ADPLUGDB_LIST || what == ADPLUGDB_GETCOUNT ||
+                    what == ADPLUGDB_GETPROGRESS || what == ADPLUGDB_GETCACHESTATS) {
                 mHandler.removeMessages(what);
             }
             mHandler.sendMessage(msg);
+            // Commit pending writes once requests stop arriving
+            if (what == ADPLUGDB_ADD || what == ADPLUGDB_REMOVE ||
+                    what == ADPLUGDB_RENAME || what == ADPLUGDB_ONSONGINFO) {
+                mHandler.removeMessages(ADPLUGDB_FLUSH);
+                mHandler.sendEmptyMessageDelayed(ADPLUGDB_FLUSH, AdPlugDbWriter.MAX_DELAY);
+            }
         } else {
             Log.w(TAG, "sendMessageToAdPlugDb: no handler: " + what);
         }
@@ -283,6 +469,18 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
         sendMessageToAdPlugDb(ADPLUGDB_LIST, data);
     }
 
+    @Override
+    public void listPage(String path, int sortby, int order, boolean hide, int offset, int limit) {
+        Bundle data = new Bundle();
+        data.putString(BUNDLE_PATH, path);
+        data.putInt(BUNDLE_SORTBY, sortby);
+        data.putInt(BUNDLE_ORDER, order);
+        data.putBoolean(BUNDLE_HIDE, hide);
+        data.putInt(BUNDLE_OFFSET, offset);
+        data.putInt(BUNDLE_LIMIT, limit);
+        sendMessageToAdPlugDb(ADPLUGDB_LISTPAGE, data);
+    }
+
     @Override
     public void playlist() {
         sendMessageToAdPlugDb(ADPLUGDB_PLAYLIST, null);
@@ -303,6 +501,34 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
         sendMessageToAdPlugDb(ADPLUGDB_REMOVE, data);
     }
 
+    @Override
+    public void removeTree(String path) {
+        Bundle data = new Bundle();
+        data.putString(BUNDLE_PATH, path);
+        sendMessageToAdPlugDb(ADPLUGDB_REMOVETREE, data);
+    }
+
+    @Override
+    public void removeAll(Collection<String> songs) {
+        Bundle data = new Bundle();
+        data.putStringArrayList(BUNDLE_SONGS, new ArrayList<>(songs));
+        sendMessageToAdPlugDb(ADPLUGDB_REMOVEALL, data);
+    }
+
+    @Override
+    public void exportSnapshot(String file) {
+        Bundle data = new Bundle();
+        data.putString(BUNDLE_FILE, file);
+        sendMessageToAdPlugDb(ADPLUGDB_EXPORT, data);
+    }
+
+    @Override
+    public void importSnapshot(String file) {
+        Bundle data = new Bundle();
+        data.putString(BUNDLE_FILE, file);
+        sendMessageToAdPlugDb(ADPLUGDB_IMPORT, data);
+    }
+
     @Override
     public void rename(String before, String after) {
         Bundle data = new Bundle();
@@ -316,6 +542,16 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
         sendMessageToAdPlugDb(ADPLUGDB_GETCOUNT, null);
     }
 
+    @Override
+    public void getProgress() {
+        sendMessageToAdPlugDb(ADPLUGDB_GETPROGRESS, null);
+    }
+
+    @Override
+    public void getCacheStats() {
+        sendMessageToAdPlugDb(ADPLUGDB_GETCACHESTATS, null);
+    }
+
     @Override
     public void search(String query) {
         Bundle data = new Bundle();
@@ -339,6 +575,55 @@ public class AdPlugDbService extends Service implements IAdPlugDb {
         sendMessageToAdPlugDb(ADPLUGDB_ONSONGINFO, data);
     }
 
+    @Override
+    public void onSongInfoBatch(AdPlugInfoBatch batch) {
+        // Passed by reference, service runs in the same process. Copied, as batch is read on
+        // database thread after caller returns.
+        sendMessageToAdPlugDb(ADPLUGDB_ONSONGINFOBATCH, null, batch.copy());
+    }
+
+    @Override
+    public void setParallelism(int parallelism) {
+        Bundle data = new Bundle();
+        data.putInt(BUNDLE_PARALLELISM, parallelism);
+        sendMessageToAdPlugDb(ADPLUGDB_PARALLELISM, data);
+    }
+
+    @Override
+    public void setInfoBatchSize(int size) {
+        Bundle data = new Bundle();
+        data.putInt(BUNDLE_BATCHSIZE, size);
+        sendMessageToAdPlugDb(ADPLUGDB_INFOBATCHSIZE, data);
+    }
+
+    @Override
+    public void setSniffHeaders(boolean sniff) {
+        Bundle data = new Bundle();
+        data.putBoolean(BUNDLE_SNIFF, sniff);
+        sendMessageToAdPlugDb(ADPLUGDB_SNIFFHEADERS, data);
+    }
+
+    @Override
+    public void setFastMetadata(boolean fast) {
+        Bundle data = new Bundle();
+        data.putBoolean(BUNDLE_FAST, fast);
+        sendMessageToAdPlugDb(ADPLUGDB_FASTMETADATA, data);
+    }
+
+    @Override
+    public void setWatch(boolean watch) {
+        Bundle data = new Bundle();
+        data.putBoolean(BUNDLE_WATCH, watch);
+        sendMessageToAdPlugDb(ADPLUGDB_WATCH, data);
+    }
+
+    @Override
+    public void setShuffleSeed(long seed) {
+        Bundle data = new Bundle();
+        data.putLong(BUNDLE_SEED, seed);
+        sendMessageToAdPlugDb(ADPLUGDB_SHUFFLESEED, data);
+    }
+
     private static File getFile(String name) {
         File f = null;
         if (name == null || name.isEmpty()) {
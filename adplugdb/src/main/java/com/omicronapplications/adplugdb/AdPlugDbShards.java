@@ -0,0 +1,317 @@
+package com.omicronapplications.adplugdb;
+
+import android.content.Context;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+
+// One database per storage root. Songs below a removable storage root are kept in a database of
+// their own, opened on first use, and all other songs in the primary database. Queries over all
+// songs fan out across shards of mounted storage roots only.
+class AdPlugDbShards {
+    private static final String TAG = "AdPlugDbShards";
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Context mContext;
+    private final Shard mPrimary;
+    private final Map<String, Shard> mShards;
+    private volatile List<String> mRoots;
+    private ExecutorService mExecutor;
+
+    static class Shard {
+        final String root;
+        final SQLiteOpenHelper helper;
+        final AdPlugDbWriter writer;
+        final AdPlugDbStatements statements;
+
+        Shard(String root, SQLiteOpenHelper helper, AdPlugDbWriter writer, AdPlugDbStatements statements) {
+            this.root = root;
+            this.helper = helper;
+            this.writer = writer;
+            this.statements = statements;
+        }
+    }
+
+    interface IShardQuery<T> {
+        T query(Shard shard);
+    }
+
+    // Database of songs below one storage root, with same schema as primary database
+    private static class Volume extends SQLiteOpenHelper {
+        private final AdPlugDbStatements mStatements;
+
+        Volume(Context context, String name) {
+            super(context, name, null, AdPlugDb.DB_VERSION);
+            setWriteAheadLoggingEnabled(true);
+            mStatements = new AdPlugDbStatements(this);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            db.setMaxSqlCacheSize(SQLiteDatabase.MAX_SQL_CACHE_SIZE);
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            AdPlugDb.createTables(db);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            AdPlugDb.upgradeTables(db, oldVersion);
+        }
+
+        @Override
+        public synchronized void close() {
+            mStatements.close();
+            super.close();
+        }
+    }
+
+    AdPlugDbShards(Context context, SQLiteOpenHelper primary, AdPlugDbWriter writer, AdPlugDbStatements statements) {
+        mContext = context;
+        mPrimary = new Shard(null, primary, writer, statements);
+        mShards = new HashMap<>();
+        mRoots = Collections.emptyList();
+        mExecutor = null;
+    }
+
+    // Removable storage roots, such as SD cards and USB drives. Returns roots not set before, which
+    // songs indexed into primary database may still be kept below, see AdPlugDb.migrate().
+    List<String> setRoots(List<String> roots) {
+        List<String> previous = mRoots;
+        mRoots = Collections.unmodifiableList(new ArrayList<>(roots));
+        List<String> added = new ArrayList<>();
+        for (String root : roots) {
+            if (!previous.contains(root)) {
+                added.add(root);
+            }
+        }
+        for (String root : previous) {
+            if (!roots.contains(root)) {
+                close(root);
+            }
+        }
+        return added;
+    }
+
+    List<String> getRoots() {
+        return mRoots;
+    }
+
+    Shard primary() {
+        return mPrimary;
+    }
+
+    // Shard holding songs and folders in path, opening shard database if needed
+    Shard get(String path) {
+        String root = root(path);
+        if (root == null) {
+            return mPrimary;
+        }
+        mLock.lock();
+        try {
+            Shard shard = mShards.get(root);
+            if (shard == null) {
+                Volume volume = new Volume(mContext, name(root));
+                shard = new Shard(root, volume, new AdPlugDbWriter(volume), volume.mStatements);
+                mShards.put(root, shard);
+            }
+            return shard;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    AdPlugDbWriter writer(String path) {
+        return get(path).writer;
+    }
+
+    // Primary shard, and shards of mounted storage roots with a database. Shards of unmounted
+    // storage roots are closed.
+    List<Shard> mounted() {
+        List<Shard> shards = new ArrayList<>();
+        shards.add(mPrimary);
+        for (String root : getRoots()) {
+            boolean mounted = new File(root).isDirectory();
+            if (mounted && (isOpen(root) || mContext.getDatabasePath(name(root)).exists())) {
+                shards.add(get(root));
+            } else if (!mounted) {
+                close(root);
+            }
+        }
+        return shards;
+    }
+
+    // Query mounted shards in parallel, results in shard order
+    <T> List<T> query(final IShardQuery<T> query) {
+        List<Shard> shards = mounted();
+        List<T> results = new ArrayList<>(shards.size());
+        if (shards.size() == 1) {
+            results.add(query.query(shards.get(0)));
+            return results;
+        }
+
+        List<Future<T>> futures = new ArrayList<>(shards.size() - 1);
+        ExecutorService executor = executor();
+        for (int i = 1; i < shards.size(); i++) {
+            final Shard shard = shards.get(i);
+            futures.add(executor.submit(new Callable<T>() {
+                @Override
+                public T call() {
+                    return query.query(shard);
+                }
+            }));
+        }
+        results.add(query.query(shards.get(0)));
+        for (Future<T> future : futures) {
+            T result = null;
+            try {
+                result = future.get();
+            } catch (ExecutionException e) {
+                Log.e(TAG, "query: ExecutionException: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Log.e(TAG, "query: InterruptedException: " + e.getMessage());
+                Thread.currentThread().interrupt();
+            }
+            results.add(result);
+        }
+        return results;
+    }
+
+    // Group paths by shard
+    Map<Shard, List<String>> group(Collection<String> paths) {
+        Map<Shard, List<String>> groups = new LinkedHashMap<>();
+        for (String path : paths) {
+            Shard shard = get(path);
+            List<String> group = groups.get(shard);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(shard, group);
+            }
+            group.add(path);
+        }
+        return groups;
+    }
+
+    void flush() {
+        for (Shard shard : opened()) {
+            shard.writer.flush();
+        }
+    }
+
+    void clear() {
+        for (Shard shard : opened()) {
+            shard.writer.clear();
+        }
+    }
+
+    void clearJournal() {
+        for (Shard shard : mounted()) {
+            shard.writer.clearJournal();
+        }
+    }
+
+    // Delete databases of all storage roots, mounted or not
+    void delete() {
+        for (String root : getRoots()) {
+            close(root);
+            mContext.deleteDatabase(name(root));
+        }
+    }
+
+    void close() {
+        for (String root : getRoots()) {
+            close(root);
+        }
+        mLock.lock();
+        try {
+            if (mExecutor != null) {
+                mExecutor.shutdown();
+                mExecutor = null;
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private List<Shard> opened() {
+        List<Shard> shards = new ArrayList<>();
+        shards.add(mPrimary);
+        mLock.lock();
+        try {
+            shards.addAll(mShards.values());
+        } finally {
+            mLock.unlock();
+        }
+        return shards;
+    }
+
+    private boolean isOpen(String root) {
+        mLock.lock();
+        try {
+            return mShards.containsKey(root);
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void close(String root) {
+        Shard shard;
+        mLock.lock();
+        try {
+            shard = mShards.remove(root);
+        } finally {
+            mLock.unlock();
+        }
+        if (shard != null) {
+            shard.writer.flush();
+            shard.helper.close();
+        }
+    }
+
+    private ExecutorService executor() {
+        mLock.lock();
+        try {
+            if (mExecutor == null) {
+                mExecutor = Executors.newCachedThreadPool();
+            }
+            return mExecutor;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Storage root containing path, or null for primary database
+    private String root(String path) {
+        if (path == null) {
+            return null;
+        }
+        String found = null;
+        for (String root : getRoots()) {
+            if ((path.equals(root) || path.startsWith(root + "/")) && (found == null || root.length() > found.length())) {
+                found = root;
+            }
+        }
+        return found;
+    }
+
+    // Hash of root keeps names apart for roots differing only in characters replaced
+    private static String name(String root) {
+        return AdPlugDb.DB_NAME + root.replaceAll("[^A-Za-z0-9]", "_") + "_" + Integer.toHexString(root.hashCode());
+    }
+}
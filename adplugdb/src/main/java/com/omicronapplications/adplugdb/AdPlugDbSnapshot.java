@@ -0,0 +1,444 @@
+package com.omicronapplications.adplugdb;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+import static com.omicronapplications.adplugdb.AdPlugDb.*;
+
+// Binary snapshot of song tables of all mounted shards, for loading an indexed library on another
+// device. Snapshot holds folder, type and author dictionaries, followed by songs referring to them
+// by index (-1 for none), and a CRC32 of all preceding bytes:
+//   int magic, int version
+//   int folders, {string path, long modified} for each folder
+//   int types, {string type} for each type
+//   int authors, {string author} for each author
+//   int songs, {int folder, string name, int type, string title, int author, string desc,
+//               long length, long songlength, int subsongs, byte flags, long modified, long size} for each song
+//   long crc
+class AdPlugDbSnapshot {
+    static final int MAGIC = 0x41504442; // "APDB"
+    static final int VERSION = 2;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_STRING = 1024 * 1024;
+    private static final int FLAG_VALID = 0x01;
+    private static final int FLAG_DIR = 0x02;
+    private static final int FLAG_PLAYLIST = 0x04;
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+    private static final String SQL_FOLDERS = "SELECT " + KEY_ID + ", " + KEY_PATH + ", " + KEY_MODIFIED +
+            " FROM " + DIR_TABLE_NAME + " ORDER BY " + KEY_PATH;
+    // Dictionary entries in use
+    private static final String SQL_TYPES = "SELECT " + KEY_ID + ", " + KEY_NAME + " FROM " + TYPE_TABLE_NAME +
+            " WHERE " + KEY_ID + " IN (SELECT " + KEY_TYPE_ID + " FROM " + TABLE_NAME + ")";
+    private static final String SQL_AUTHORS = "SELECT " + KEY_ID + ", " + KEY_NAME + " FROM " + AUTHOR_TABLE_NAME +
+            " WHERE " + KEY_ID + " IN (SELECT " + KEY_AUTHOR_ID + " FROM " + TABLE_NAME + ")";
+    private static final String SQL_SONGS = "SELECT " + KEY_DIR_ID + ", " + KEY_NAME + ", " + KEY_TYPE_ID + ", " +
+            KEY_TITLE + ", " + KEY_AUTHOR_ID + ", " + KEY_DESC + ", " + KEY_LENGTH + ", " + KEY_SONGLENGTH + ", " +
+            KEY_SUBSONGS + ", " + KEY_VALID + ", " + KEY_DIR + ", " + KEY_PLAYLIST + ", " + KEY_MODIFIED + ", " + KEY_SIZE +
+            " FROM " + TABLE_NAME;
+    private static final String SQL_INSERT_FOLDER = "INSERT INTO " + DIR_TABLE_NAME + " (" +
+            KEY_PARENT_ID + ", " + KEY_NAME + ", " + KEY_PATH + ", " + KEY_MODIFIED + ") VALUES (?, ?, ?, ?)";
+    private static final String SQL_INSERT_SONG = "INSERT INTO " + TABLE_NAME + " (" +
+            KEY_DIR_ID + ", " + KEY_NAME + ", " + KEY_TYPE_ID + ", " + KEY_TITLE + ", " + KEY_AUTHOR_ID + ", " +
+            KEY_DESC + ", " + KEY_LENGTH + ", " + KEY_SONGLENGTH + ", " + KEY_SUBSONGS + ", " + KEY_VALID + ", " +
+            KEY_DIR + ", " + KEY_PLAYLIST + ", " + KEY_MODIFIED + ", " + KEY_SIZE + ", " + KEY_NAME_KEY + ", " +
+            KEY_TITLE_KEY + ", " + KEY_AUTHOR_KEY + ", " + KEY_EXTENSION +
+            ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)";
+    // Dictionary rows are kept when songs are deleted, existing names are reused
+    private static final String SQL_INSERT_TYPE = "INSERT OR IGNORE INTO " + TYPE_TABLE_NAME + " (" + KEY_NAME + ") VALUES (?)";
+    private static final String SQL_FIND_TYPE = "SELECT " + KEY_ID + " FROM " + TYPE_TABLE_NAME + " WHERE " + KEY_NAME + " = ?";
+    private static final String SQL_INSERT_AUTHOR = "INSERT OR IGNORE INTO " + AUTHOR_TABLE_NAME + " (" + KEY_NAME + ") VALUES (?)";
+    private static final String SQL_FIND_AUTHOR = "SELECT " + KEY_ID + " FROM " + AUTHOR_TABLE_NAME + " WHERE " + KEY_NAME + " = ?";
+
+    private AdPlugDbSnapshot() {
+    }
+
+    // Number of songs written. Songs of all databases are written as one library, each database read
+    // in a transaction of its own, so that folders, dictionaries and songs written are consistent
+    // with each other while songs are being indexed.
+    static long write(List<SQLiteDatabase> dbs, OutputStream os) throws IOException {
+        CRC32 crc = new CRC32();
+        DataOutputStream dos = new DataOutputStream(new CheckedOutputStream(new BufferedOutputStream(os, BUFFER_SIZE), crc));
+        dos.writeInt(MAGIC);
+        dos.writeInt(VERSION);
+
+        long songs = 0;
+        int begun = 0;
+        try {
+            for (SQLiteDatabase db : dbs) {
+                db.beginTransactionNonExclusive();
+                begun++;
+            }
+            songs = write(dbs, dos);
+            for (SQLiteDatabase db : dbs) {
+                db.setTransactionSuccessful();
+            }
+        } finally {
+            for (int i = 0; i < begun; i++) {
+                dbs.get(i).endTransaction();
+            }
+        }
+
+        dos.flush();
+        new DataOutputStream(os).writeLong(crc.getValue());
+        os.flush();
+        return songs;
+    }
+
+    // Indexes of folders and dictionary entries run on across databases
+    private static long write(List<SQLiteDatabase> dbs, DataOutputStream dos) throws IOException {
+        List<Map<Long, Integer>> folders = new ArrayList<>();
+        List<Cursor> cursors = query(dbs, SQL_FOLDERS);
+        try {
+            dos.writeInt(count(cursors));
+            int index = 0;
+            for (Cursor cursor : cursors) {
+                Map<Long, Integer> indexes = new HashMap<>();
+                while (cursor.moveToNext()) {
+                    indexes.put(cursor.getLong(0), index++);
+                    writeString(dos, cursor.getString(1));
+                    dos.writeLong(cursor.getLong(2));
+                }
+                folders.add(indexes);
+            }
+        } finally {
+            close(cursors);
+        }
+
+        List<Map<Long, Integer>> types = writeDictionary(dbs, dos, SQL_TYPES);
+        List<Map<Long, Integer>> authors = writeDictionary(dbs, dos, SQL_AUTHORS);
+
+        long songs = 0;
+        cursors = query(dbs, SQL_SONGS);
+        try {
+            dos.writeInt(count(cursors));
+            for (int i = 0; i < cursors.size(); i++) {
+                Cursor cursor = cursors.get(i);
+                while (cursor.moveToNext()) {
+                    Integer folder = folders.get(i).get(cursor.getLong(0));
+                    if (folder == null) {
+                        throw new IOException("song without folder: " + cursor.getString(1));
+                    }
+                    dos.writeInt(folder);
+                    writeString(dos, cursor.getString(1));
+                    dos.writeInt(cursor.isNull(2) ? -1 : types.get(i).get(cursor.getLong(2)));
+                    writeString(dos, cursor.getString(3));
+                    dos.writeInt(cursor.isNull(4) ? -1 : authors.get(i).get(cursor.getLong(4)));
+                    writeString(dos, cursor.getString(5));
+                    dos.writeLong(cursor.getLong(6));
+                    dos.writeLong(cursor.getLong(7));
+                    dos.writeInt(cursor.getInt(8));
+                    int flags = (cursor.getInt(9) != 0 ? FLAG_VALID : 0) |
+                            (cursor.getInt(10) != 0 ? FLAG_DIR : 0) |
+                            (cursor.getInt(11) != 0 ? FLAG_PLAYLIST : 0);
+                    dos.writeByte(flags);
+                    dos.writeLong(cursor.getLong(12));
+                    dos.writeLong(cursor.getLong(13));
+                    songs++;
+                }
+            }
+        } finally {
+            close(cursors);
+        }
+        return songs;
+    }
+
+    // Replace contents of mounted shards with snapshot, number of songs read. Folders and their songs
+    // are added to shard holding folder path. Databases left unchanged if snapshot is invalid.
+    static long read(AdPlugDbShards shards, InputStream is) throws IOException {
+        CRC32 crc = new CRC32();
+        InputStream bis = new BufferedInputStream(is, BUFFER_SIZE);
+        DataInputStream dis = new DataInputStream(new CheckedInputStream(bis, crc));
+        if (dis.readInt() != MAGIC) {
+            throw new IOException("not a snapshot");
+        }
+        int version = dis.readInt();
+        if (version != VERSION) {
+            throw new IOException("unsupported snapshot version: " + version);
+        }
+
+        long songs = 0;
+        Map<AdPlugDbShards.Shard, Target> targets = new LinkedHashMap<>();
+        try {
+            for (AdPlugDbShards.Shard shard : shards.mounted()) {
+                target(targets, shard);
+            }
+
+            // Folders sorted by path, parents are inserted before folders below. Lists grow as
+            // entries are read, as counts are not trusted until checksum is verified.
+            int count = readCount(dis);
+            List<Target> folderTargets = new ArrayList<>();
+            List<Long> folders = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                String path = readString(dis);
+                long modified = dis.readLong();
+                if (path == null) {
+                    throw new IOException("invalid folder: " + i);
+                }
+                Target target = target(targets, shards.get(path));
+                File f = new File(path);
+                Long parent = (f.getParent() != null) ? target.ids.get(f.getParent()) : null;
+                target.insertFolder.bindLong(1, (parent != null) ? parent : 0);
+                target.insertFolder.bindString(2, f.getName());
+                target.insertFolder.bindString(3, path);
+                target.insertFolder.bindLong(4, modified);
+                long id = target.insertFolder.executeInsert();
+                target.ids.put(path, id);
+                folderTargets.add(target);
+                folders.add(id);
+            }
+
+            // Dictionaries added to each database songs are added to
+            List<String> typeNames = readDictionary(dis);
+            List<String> authorNames = readDictionary(dis);
+            for (Target target : targets.values()) {
+                target.types = insertDictionary(target.db, typeNames, SQL_INSERT_TYPE, SQL_FIND_TYPE);
+                target.authors = insertDictionary(target.db, authorNames, SQL_INSERT_AUTHOR, SQL_FIND_AUTHOR);
+            }
+
+            count = readCount(dis);
+            for (int i = 0; i < count; i++) {
+                int folder = dis.readInt();
+                if (folder < 0 || folder >= folders.size()) {
+                    throw new IOException("invalid folder index: " + folder);
+                }
+                Target target = folderTargets.get(folder);
+                SQLiteStatement insertSong = target.insertSong;
+                insertSong.bindLong(1, folders.get(folder));
+                String name = readString(dis);
+                bindString(insertSong, 2, name);
+                bindIndex(insertSong, 3, target.types, dis.readInt());
+                String title = readString(dis);
+                bindString(insertSong, 4, title);
+                int author = dis.readInt();
+                bindIndex(insertSong, 5, target.authors, author);
+                bindString(insertSong, 6, readString(dis));
+                insertSong.bindLong(7, dis.readLong());
+                insertSong.bindLong(8, dis.readLong());
+                insertSong.bindLong(9, dis.readInt());
+                int flags = dis.readUnsignedByte();
+                boolean dir = (flags & FLAG_DIR) != 0;
+                insertSong.bindLong(10, (flags & FLAG_VALID) != 0 ? 1 : 0);
+                insertSong.bindLong(11, dir ? 1 : 0);
+                insertSong.bindLong(12, (flags & FLAG_PLAYLIST) != 0 ? 1 : 0);
+                insertSong.bindLong(13, dis.readLong());
+                insertSong.bindLong(14, dis.readLong());
+                // Sort keys derived from song, not stored in snapshot
+                insertSong.bindString(15, AdPlugDbSortKeys.name(name));
+                insertSong.bindString(16, AdPlugDbSortKeys.title(name, title, dir));
+                insertSong.bindString(17, AdPlugDbSortKeys.author(name, (author >= 0) ? authorNames.get(author) : null, dir));
+                insertSong.bindString(18, AdPlugDbSortKeys.extension(name, dir));
+                insertSong.executeInsert();
+                songs++;
+            }
+
+            // Checksum read past checked stream
+            long expected = crc.getValue();
+            if (new DataInputStream(bis).readLong() != expected) {
+                throw new IOException("checksum mismatch");
+            }
+            for (Target target : targets.values()) {
+                rebuildFts(target.db);
+                target.db.setTransactionSuccessful();
+            }
+        } finally {
+            for (Target target : targets.values()) {
+                target.close();
+            }
+        }
+        return songs;
+    }
+
+    // Database of shard songs are imported to, cleared in a transaction on first use
+    private static class Target {
+        final SQLiteDatabase db;
+        final Map<String, Long> ids;
+        SQLiteStatement insertFolder;
+        SQLiteStatement insertSong;
+        long[] types;
+        long[] authors;
+
+        Target(SQLiteDatabase db) {
+            this.db = db;
+            ids = new HashMap<>();
+        }
+
+        void close() {
+            if (insertFolder != null) {
+                insertFolder.close();
+            }
+            if (insertSong != null) {
+                insertSong.close();
+            }
+            db.endTransaction();
+        }
+    }
+
+    private static Target target(Map<AdPlugDbShards.Shard, Target> targets, AdPlugDbShards.Shard shard) {
+        Target target = targets.get(shard);
+        if (target == null) {
+            SQLiteDatabase db = shard.helper.getWritableDatabase();
+            db.beginTransaction();
+            target = new Target(db);
+            targets.put(shard, target);
+            // Full-text index rebuilt once all songs are inserted, rather than for each song
+            dropFtsTriggers(db);
+            db.delete(TABLE_NAME, null, null);
+            db.delete(DIR_TABLE_NAME, null, null);
+            db.delete(JOURNAL_TABLE_NAME, null, null);
+            target.insertFolder = db.compileStatement(SQL_INSERT_FOLDER);
+            target.insertSong = db.compileStatement(SQL_INSERT_SONG);
+        }
+        return target;
+    }
+
+    private static List<Cursor> query(List<SQLiteDatabase> dbs, String sql) {
+        List<Cursor> cursors = new ArrayList<>();
+        try {
+            for (SQLiteDatabase db : dbs) {
+                cursors.add(db.rawQuery(sql, null));
+            }
+        } catch (RuntimeException e) {
+            close(cursors);
+            throw e;
+        }
+        return cursors;
+    }
+
+    private static int count(List<Cursor> cursors) {
+        int count = 0;
+        for (Cursor cursor : cursors) {
+            count += cursor.getCount();
+        }
+        return count;
+    }
+
+    private static void close(List<Cursor> cursors) {
+        for (Cursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+
+    // Dictionary entries in use, and their id to index for each database
+    private static List<Map<Long, Integer>> writeDictionary(List<SQLiteDatabase> dbs, DataOutputStream dos, String sql) throws IOException {
+        List<Map<Long, Integer>> indexes = new ArrayList<>();
+        List<Cursor> cursors = query(dbs, sql);
+        try {
+            dos.writeInt(count(cursors));
+            int index = 0;
+            for (Cursor cursor : cursors) {
+                Map<Long, Integer> ids = new HashMap<>();
+                while (cursor.moveToNext()) {
+                    ids.put(cursor.getLong(0), index++);
+                    writeString(dos, cursor.getString(1));
+                }
+                indexes.add(ids);
+            }
+        } finally {
+            close(cursors);
+        }
+        return indexes;
+    }
+
+    private static List<String> readDictionary(DataInputStream dis) throws IOException {
+        int count = readCount(dis);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            String name = readString(dis);
+            if (name == null) {
+                throw new IOException("invalid dictionary entry: " + i);
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    // Dictionary entries added if not found, and their index to id
+    private static long[] insertDictionary(SQLiteDatabase db, List<String> names, String insertSql, String findSql) {
+        long[] ids = new long[names.size()];
+        SQLiteStatement insert = db.compileStatement(insertSql);
+        SQLiteStatement find = db.compileStatement(findSql);
+        try {
+            for (int i = 0; i < names.size(); i++) {
+                String name = names.get(i);
+                insert.bindString(1, name);
+                insert.executeInsert();
+                find.bindString(1, name);
+                ids[i] = find.simpleQueryForLong();
+            }
+        } finally {
+            insert.close();
+            find.close();
+        }
+        return ids;
+    }
+
+    // Dictionary id by index, -1 for none
+    private static void bindIndex(SQLiteStatement statement, int column, long[] ids, int index) throws IOException {
+        if (index == -1) {
+            statement.bindNull(column);
+        } else if (index >= 0 && index < ids.length) {
+            statement.bindLong(column, ids[index]);
+        } else {
+            throw new IOException("invalid dictionary index: " + index);
+        }
+    }
+
+    // Length prefixed UTF-8, -1 for null
+    private static void writeString(DataOutputStream dos, String value) throws IOException {
+        if (value == null) {
+            dos.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(CHARSET);
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    private static String readString(DataInputStream dis) throws IOException {
+        int length = dis.readInt();
+        if (length < 0) {
+            return null;
+        }
+        if (length > MAX_STRING) {
+            throw new IOException("invalid string length: " + length);
+        }
+        byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return new String(bytes, CHARSET);
+    }
+
+    private static int readCount(DataInputStream dis) throws IOException {
+        int count = dis.readInt();
+        if (count < 0) {
+            throw new IOException("invalid count: " + count);
+        }
+        return count;
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package com.omicronapplications.adplugdb;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+
+import static com.omicronapplications.adplugdb.AdPlugDb.*;
+
+// Normalized sort keys, computed once when songs are written and stored next to them, so folders
+// may be sorted in database. Folders sort by file name whatever the sort criterion.
+class AdPlugDbSortKeys {
+    private static final String SQL_SONGS = "SELECT " + TABLE_NAME + "." + KEY_ID + ", " + TABLE_NAME + "." + KEY_NAME + ", " +
+            KEY_TITLE + ", " + AUTHOR_TABLE_NAME + "." + KEY_NAME + ", " + KEY_DIR + " FROM " + TABLE_NAME +
+            " LEFT JOIN " + AUTHOR_TABLE_NAME + " ON " + TABLE_NAME + "." + KEY_AUTHOR_ID + " = " + AUTHOR_TABLE_NAME + "." + KEY_ID;
+    private static final String SQL_UPDATE = "UPDATE " + TABLE_NAME + " SET " + KEY_NAME_KEY + " = ?, " +
+            KEY_TITLE_KEY + " = ?, " + KEY_AUTHOR_KEY + " = ?, " + KEY_EXTENSION + " = ? WHERE " + KEY_ID + " = ?";
+
+    private AdPlugDbSortKeys() {
+    }
+
+    static String name(String name) {
+        return (name != null) ? name.toLowerCase() : "";
+    }
+
+    // Title, or file name if none, without leading quote
+    static String title(String name, String title, boolean dir) {
+        if (dir) {
+            return name(name);
+        }
+        String s = (title != null && !title.isEmpty()) ? title.toLowerCase() : name(name);
+        if (!s.isEmpty() && s.charAt(0) == '\"') {
+            s = s.substring(1);
+        }
+        return s.trim();
+    }
+
+    // Author, or file name if none
+    static String author(String name, String author, boolean dir) {
+        if (dir || author == null || author.isEmpty()) {
+            return name(name);
+        }
+        return author.toLowerCase();
+    }
+
+    // File name extension, characters after last dot
+    static String extension(String name, boolean dir) {
+        if (dir || name == null) {
+            return "";
+        }
+        int i = name.lastIndexOf('.');
+        return (i != -1) ? name.substring(i + 1).toUpperCase() : "";
+    }
+
+    // Sort keys of all songs, for songs written without them
+    static void update(SQLiteDatabase db) {
+        Cursor cursor = db.rawQuery(SQL_SONGS, null);
+        SQLiteStatement update = db.compileStatement(SQL_UPDATE);
+        try {
+            while (cursor.moveToNext()) {
+                String name = cursor.getString(1);
+                boolean dir = (cursor.getInt(4) != 0);
+                update.bindString(1, name(name));
+                update.bindString(2, title(name, cursor.getString(2), dir));
+                update.bindString(3, author(name, cursor.getString(3), dir));
+                update.bindString(4, extension(name, dir));
+                update.bindLong(5, cursor.getLong(0));
+                update.executeUpdateDelete();
+            }
+        } finally {
+            cursor.close();
+            update.close();
+        }
+    }
+}
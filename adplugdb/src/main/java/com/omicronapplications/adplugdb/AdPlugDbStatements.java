@@ -0,0 +1,112 @@
+package com.omicronapplications.adplugdb;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Statements keyed by query shape, with values always bound as parameters. Single value queries
+// are kept while the database is open, but SQLite prepares them again on each pooled connection
+// they run on. Row queries, and writer statements compiled for each commit, are prepared through
+// the statement cache of each connection, which onConfigure() sizes to hold all query shapes used.
+class AdPlugDbStatements {
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final SQLiteOpenHelper mHelper;
+    private final Map<String, SQLiteStatement> mStatements;
+    private final Map<String, Map<Long, String>> mDictionaries;
+    private SQLiteDatabase mDb;
+
+    AdPlugDbStatements(SQLiteOpenHelper helper) {
+        mHelper = helper;
+        mStatements = new HashMap<>();
+        mDictionaries = new HashMap<>();
+        mDb = null;
+    }
+
+    // Single value of first row, or -1 if no rows
+    long queryLong(String sql, String... args) {
+        mLock.lock();
+        try {
+            SQLiteStatement statement = statement(sql);
+            statement.bindAllArgsAsStrings(args);
+            try {
+                return statement.simpleQueryForLong();
+            } catch (SQLiteDoneException e) {
+                return -1;
+            } finally {
+                statement.clearBindings();
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Name in dictionary table by id, or null if not found. Dictionary rows are never changed or
+    // deleted, so names are kept and the same instance returned for all rows referring to it.
+    String dictionary(String table, long id) {
+        mLock.lock();
+        try {
+            Map<Long, String> names = mDictionaries.get(table);
+            if (names == null) {
+                names = new HashMap<>();
+                mDictionaries.put(table, names);
+            }
+            String name = names.get(id);
+            if (name == null) {
+                SQLiteStatement statement = statement("SELECT " + AdPlugDb.KEY_NAME + " FROM " + table +
+                        " WHERE " + AdPlugDb.KEY_ID + " = ?");
+                statement.bindLong(1, id);
+                try {
+                    name = statement.simpleQueryForString();
+                } catch (SQLiteDoneException e) {
+                    return null;
+                } finally {
+                    statement.clearBindings();
+                }
+                names.put(id, name);
+            }
+            return name;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    Cursor query(String sql, String... args) {
+        return mHelper.getReadableDatabase().rawQuery(sql, args);
+    }
+
+    // Release compiled statements, before closing database
+    void close() {
+        mLock.lock();
+        try {
+            for (SQLiteStatement statement : mStatements.values()) {
+                statement.close();
+            }
+            mStatements.clear();
+            mDictionaries.clear();
+            mDb = null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private SQLiteStatement statement(String sql) {
+        SQLiteDatabase db = mHelper.getReadableDatabase();
+        if (db != mDb) {
+            // Database reopened, statements compiled for previous connection
+            close();
+            mDb = db;
+        }
+        SQLiteStatement statement = mStatements.get(sql);
+        if (statement == null) {
+            statement = db.compileStatement(sql);
+            mStatements.put(sql, statement);
+        }
+        return statement;
+    }
+}
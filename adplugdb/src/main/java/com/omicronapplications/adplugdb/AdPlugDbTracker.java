@@ -0,0 +1,148 @@
+package com.omicronapplications.adplugdb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Songs waiting for information from AdPlug, and the index and list jobs waiting for them
+class AdPlugDbTracker {
+    static final int JOB_NONE = 0;
+    static final int JOB_INDEX = 1;
+    static final int JOB_LIST = 2;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Map<String, Integer> mPending;
+    private int mListPending;
+    private int mArmed;
+    private long mCompleted;
+    private long mSkipped;
+
+    AdPlugDbTracker() {
+        mPending = new HashMap<>();
+        mListPending = 0;
+        mArmed = JOB_NONE;
+        mCompleted = 0;
+        mSkipped = 0;
+    }
+
+    // Start index job, forgetting any outstanding requests not waited for by a list job
+    void startIndex() {
+        mLock.lock();
+        try {
+            Iterator<Integer> it = mPending.values().iterator();
+            while (it.hasNext()) {
+                if ((it.next() & JOB_LIST) == 0) {
+                    it.remove();
+                }
+            }
+            mArmed &= ~JOB_INDEX;
+            mCompleted = 0;
+            mSkipped = 0;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Returns true if song information needs to be requested, false if already outstanding
+    boolean request(String name, boolean list) {
+        mLock.lock();
+        try {
+            Integer jobs = mPending.get(name);
+            int job = list ? JOB_LIST : JOB_NONE;
+            if (jobs == null) {
+                mPending.put(name, JOB_INDEX | job);
+                if (list) {
+                    mListPending++;
+                }
+                return true;
+            }
+            if (list && (jobs & JOB_LIST) == 0) {
+                mPending.put(name, jobs | JOB_LIST);
+                mListPending++;
+            }
+            return false;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Song not requested, as it is not playable by AdPlug
+    void skip() {
+        mLock.lock();
+        try {
+            mSkipped++;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // Song information received. Returns jobs completed as a result, or -1 if song was not requested.
+    int complete(String name) {
+        mLock.lock();
+        try {
+            Integer jobs = mPending.remove(name);
+            if (jobs == null) {
+                return -1;
+            }
+            mCompleted++;
+            int completed = JOB_NONE;
+            if ((jobs & JOB_LIST) != 0) {
+                mListPending--;
+                if (mListPending == 0 && (mArmed & JOB_LIST) != 0) {
+                    completed |= JOB_LIST;
+                }
+            }
+            if (mPending.isEmpty() && (mArmed & JOB_INDEX) != 0) {
+                completed |= JOB_INDEX;
+            }
+            mArmed &= ~completed;
+            return completed;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    // All songs for job requested. Returns true if job is already complete, otherwise it completes
+    // through complete() once the last song is received.
+    boolean arm(int job) {
+        mLock.lock();
+        try {
+            boolean done = (job == JOB_INDEX) ? mPending.isEmpty() : (mListPending == 0);
+            if (done) {
+                mArmed &= ~job;
+            } else {
+                mArmed |= job;
+            }
+            return done;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    int getOutstanding() {
+        mLock.lock();
+        try {
+            return mPending.size();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    long getCompleted() {
+        mLock.lock();
+        try {
+            return mCompleted;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    long getSkipped() {
+        mLock.lock();
+        try {
+            return mSkipped;
+        } finally {
+            mLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,290 @@
+package com.omicronapplications.adplugdb;
+
+import android.os.Build;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.RequiresApi;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+// Watches indexed folders for created, deleted and moved files. Events are coalesced per path, and
+// reported in a single batch once no further events have arrived for DEBOUNCE_DELAY.
+class AdPlugDbWatcher {
+    private static final String TAG = "AdPlugDbWatcher";
+    static final long DEBOUNCE_DELAY = 500; // ms
+    static final long MAX_DELAY = 5000; // ms
+    private static final int EVENTS = FileObserver.CREATE | FileObserver.CLOSE_WRITE |
+            FileObserver.DELETE | FileObserver.MOVED_FROM | FileObserver.MOVED_TO |
+            FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+    private static final int EVENT_CHANGED = 0;
+    private static final int EVENT_MOVED_FROM = 1;
+    private static final int EVENT_MOVED_TO = 2;
+    private final ReentrantLock mLock = new ReentrantLock();
+    private final Handler mHandler;
+    private final IWatchCallback mCallback;
+    private final Map<String, FolderObserver> mObservers;
+    private final Map<String, Integer> mEvents;
+    // Moved to path by moved from path in order moved, for renames within watched folders
+    private final Map<String, String> mMoves;
+    private final Runnable mFlushRunner;
+    private long mFirstEvent;
+    private String mMovedFrom;
+
+    interface IWatchCallback {
+        // Called on handler thread
+        void onChanges(Changes changes);
+    }
+
+    static class Changes {
+        final List<String> added;
+        final List<Long> lengths;
+        final List<String> dirs;
+        final List<String> removed;
+        final List<String> renamedFrom;
+        final List<String> renamedTo;
+
+        Changes() {
+            added = new ArrayList<>();
+            lengths = new ArrayList<>();
+            dirs = new ArrayList<>();
+            removed = new ArrayList<>();
+            renamedFrom = new ArrayList<>();
+            renamedTo = new ArrayList<>();
+        }
+
+        boolean isEmpty() {
+            return added.isEmpty() && dirs.isEmpty() && removed.isEmpty() && renamedFrom.isEmpty();
+        }
+    }
+
+    private class FolderObserver extends FileObserver {
+        private final String mPath;
+
+        @SuppressWarnings("deprecation")
+        FolderObserver(String path) {
+            super(path, EVENTS);
+            mPath = path;
+        }
+
+        @RequiresApi(Build.VERSION_CODES.Q)
+        FolderObserver(File folder) {
+            super(folder, EVENTS);
+            mPath = folder.getAbsolutePath();
+        }
+
+        @Override
+        public void onEvent(int event, String path) {
+            event &= FileObserver.ALL_EVENTS;
+            if (event == FileObserver.DELETE_SELF || event == FileObserver.MOVE_SELF) {
+                onFolderEvent(mPath);
+            } else if (path != null) {
+                onFileEvent(event, mPath + File.separator + path);
+            }
+        }
+    }
+
+    private class FlushRunner implements Runnable {
+        @Override
+        public void run() {
+            flush();
+        }
+    }
+
+    AdPlugDbWatcher(Handler handler, IWatchCallback callback) {
+        mHandler = handler;
+        mCallback = callback;
+        mObservers = new HashMap<>();
+        mEvents = new LinkedHashMap<>();
+        mMoves = new LinkedHashMap<>();
+        mFlushRunner = new FlushRunner();
+        mFirstEvent = 0;
+        mMovedFrom = null;
+    }
+
+    // Watch root and all folders below
+    void watch(File root) {
+        if (root == null || !root.isDirectory()) {
+            Log.w(TAG, "watch: invalid folder: " + root);
+            return;
+        }
+        File[] fs = root.listFiles();
+        mLock.lock();
+        try {
+            String path = root.getAbsolutePath();
+            if (!mObservers.containsKey(path)) {
+                FolderObserver observer = (Build.VERSION.SDK_INT >= Build.VERSION_CODES.Q) ? new FolderObserver(root) : new FolderObserver(path);
+                mObservers.put(path, observer);
+                observer.startWatching();
+            }
+        } finally {
+            mLock.unlock();
+        }
+        if (fs != null) {
+            for (File f : fs) {
+                if (f.isDirectory()) {
+                    watch(f);
+                }
+            }
+        }
+    }
+
+    // Stop watching all folders, discarding pending events
+    void unwatch() {
+        mHandler.removeCallbacks(mFlushRunner);
+        mLock.lock();
+        try {
+            for (FolderObserver observer : mObservers.values()) {
+                observer.stopWatching();
+            }
+            mObservers.clear();
+            mEvents.clear();
+            mMoves.clear();
+            mMovedFrom = null;
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void unwatch(String path) {
+        mLock.lock();
+        try {
+            Iterator<Map.Entry<String, FolderObserver>> it = mObservers.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, FolderObserver> entry = it.next();
+                String name = entry.getKey();
+                if (name.equals(path) || name.startsWith(path + File.separator)) {
+                    entry.getValue().stopWatching();
+                    it.remove();
+                }
+            }
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void onFileEvent(int event, String path) {
+        int kind;
+        switch (event) {
+            case FileObserver.CREATE:
+                // Files are reported once written, folders as soon as created
+                if (!new File(path).isDirectory()) {
+                    return;
+                }
+                kind = EVENT_CHANGED;
+                break;
+            case FileObserver.MOVED_FROM:
+                kind = EVENT_MOVED_FROM;
+                break;
+            case FileObserver.MOVED_TO:
+                kind = EVENT_MOVED_TO;
+                break;
+            case FileObserver.CLOSE_WRITE:
+            case FileObserver.DELETE:
+                kind = EVENT_CHANGED;
+                break;
+            default:
+                return;
+        }
+        schedule(path, kind);
+    }
+
+    private void onFolderEvent(String path) {
+        unwatch(path);
+    }
+
+    private void schedule(String path, int kind) {
+        long delay;
+        mLock.lock();
+        try {
+            long now = SystemClock.elapsedRealtime();
+            if (mEvents.isEmpty()) {
+                mFirstEvent = now;
+            }
+            mEvents.put(path, kind);
+            // Both halves of a rename are reported one after the other, by the single thread
+            // reading events for all observers
+            if (kind == EVENT_MOVED_TO && mMovedFrom != null) {
+                // Moved again, reported as a single rename from first path
+                String from = mMoves.remove(mMovedFrom);
+                mMoves.put(path, (from != null) ? from : mMovedFrom);
+            }
+            mMovedFrom = (kind == EVENT_MOVED_FROM) ? path : null;
+            delay = Math.max(0, Math.min(DEBOUNCE_DELAY, mFirstEvent + MAX_DELAY - now));
+        } finally {
+            mLock.unlock();
+        }
+        mHandler.removeCallbacks(mFlushRunner);
+        mHandler.postDelayed(mFlushRunner, delay);
+    }
+
+    // Compare coalesced events with file system. Files and folders moved within watched folders
+    // are reported as renamed, if neither path has changed again since.
+    private void flush() {
+        Map<String, Integer> events;
+        Map<String, String> moves;
+        mLock.lock();
+        try {
+            if (mEvents.isEmpty()) {
+                return;
+            }
+            events = new LinkedHashMap<>(mEvents);
+            moves = new LinkedHashMap<>(mMoves);
+            mEvents.clear();
+            mMoves.clear();
+            mMovedFrom = null;
+        } finally {
+            mLock.unlock();
+        }
+
+        Changes changes = new Changes();
+        for (Map.Entry<String, String> move : moves.entrySet()) {
+            String to = move.getKey();
+            String from = move.getValue();
+            Integer toEvent = events.get(to);
+            Integer fromEvent = events.get(from);
+            if (toEvent == null || toEvent != EVENT_MOVED_TO || fromEvent == null || fromEvent != EVENT_MOVED_FROM) {
+                continue;
+            }
+            AdPlugDbScanner.Stat stat = AdPlugDbScanner.Stat.of(new File(to));
+            if (stat == null || AdPlugDbScanner.Stat.of(new File(from)) != null) {
+                continue;
+            }
+            events.remove(to);
+            events.remove(from);
+            unwatch(from);
+            if (stat.dir) {
+                watch(new File(to));
+            }
+            changes.renamedFrom.add(from);
+            changes.renamedTo.add(to);
+        }
+        for (Map.Entry<String, Integer> event : events.entrySet()) {
+            String path = event.getKey();
+            File f = new File(path);
+            AdPlugDbScanner.Stat stat = AdPlugDbScanner.Stat.of(f);
+            if (stat == null) {
+                changes.removed.add(path);
+                unwatch(path);
+            } else if (stat.dir) {
+                changes.dirs.add(path);
+                watch(f);
+            } else if (stat.file) {
+                changes.added.add(path);
+                changes.lengths.add(stat.length);
+            }
+        }
+        if (!changes.isEmpty()) {
+            mCallback.onChanges(changes);
+        }
+    }
+}
@@ -0,0 +1,770 @@
+package com.omicronapplications.adplugdb;
+
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteDoneException;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.os.SystemClock;
+import android.util.Log;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import static com.omicronapplications.adplugdb.AdPlugDb.*;
+
+// Write-behind queue, committing inserts, deletes and renames in a single transaction. Pending
+// operations are committed at the latest MAX_DELAY after the first one was queued. If an operation
+// fails, the transaction is rolled back and operations are committed one by one, so that only the
+// failing operation is discarded.
+class AdPlugDbWriter {
+    private static final String TAG = "AdPlugDbWriter";
+    static final int MAX_PENDING = 500;
+    static final long MAX_DELAY = 1000; // ms
+    private static final int OP_INSERT = 0;
+    private static final int OP_DELETE = 1;
+    private static final int OP_RENAME = 2;
+    private static final int OP_FINGERPRINT = 3;
+    private static final int OP_DIRECTORY = 4;
+    private static final int OP_DELETE_DIRECTORY = 5;
+    private static final int OP_RECONCILE = 6;
+    private static final int OP_JOURNAL = 7;
+    private static final int OP_UNJOURNAL = 8;
+    private static final int OP_CLEAR_JOURNAL = 9;
+    private static final int OP_FIND_DIRECTORY = 10;
+    private static final int OP_INSERT_DIRECTORY = 11;
+    private static final int OP_RECONCILE_NAME = 12;
+    private static final int OP_RECONCILE_SUBTREE = 13;
+    private static final int OP_RECONCILE_CLEAR = 14;
+    private static final int OP_MOVE_DIRECTORY = 15;
+    private static final int OP_MOVE_SUBDIRECTORIES = 16;
+    private static final int OP_DELETE_TREE = 17;
+    private static final int OP_DELETE_SUBTREE = 18;
+    private static final int OP_DELETE_SUBDIRECTORIES = 19;
+    private static final int OP_FIND_TYPE = 20;
+    private static final int OP_INSERT_TYPE = 21;
+    private static final int OP_FIND_AUTHOR = 22;
+    private static final int OP_INSERT_AUTHOR = 23;
+    private static final int OP_UNINDEX_SUBTREE = 24;
+    private static final int OP_INDEX_SUBTREE = 25;
+    private static final int OP_MOVE_JOURNAL = 26;
+    private static final int OP_RECONCILE_SUBDIRECTORIES = 27;
+    private static final int OP_RECONCILE_JOURNAL = 28;
+    private static final String RECONCILE_TABLE_NAME = "reconcile";
+    // Insert or replace song in folder, keeping id of any existing row
+    private static final String SQL_INSERT = "INSERT OR REPLACE INTO " + TABLE_NAME + " (" +
+            KEY_ID + ", " + KEY_DIR_ID + ", " + KEY_NAME + ", " + KEY_TYPE_ID + ", " + KEY_TITLE + ", " +
+            KEY_AUTHOR_ID + ", " + KEY_DESC + ", " + KEY_LENGTH + ", " + KEY_SONGLENGTH + ", " +
+            KEY_SUBSONGS + ", " + KEY_VALID + ", " + KEY_DIR + ", " + KEY_PLAYLIST + ", " +
+            KEY_MODIFIED + ", " + KEY_SIZE + ", " + KEY_NAME_KEY + ", " + KEY_TITLE_KEY + ", " + KEY_AUTHOR_KEY + ", " +
+            KEY_EXTENSION + ") VALUES (" +
+            "(SELECT " + KEY_ID + " FROM " + TABLE_NAME + " WHERE " + KEY_DIR_ID + " = ?1 AND " + KEY_NAME + " = ?2), " +
+            "?1, ?2, ?3, ?4, ?5, ?6, ?7, ?8, ?9, ?10, ?11, ?12, ?13, ?14, ?15, ?16, ?17, ?18)";
+    private static final String SQL_DELETE = "DELETE FROM " + TABLE_NAME +
+            " WHERE " + KEY_DIR_ID + " = ? AND " + KEY_NAME + " = ?";
+    // Sort keys falling back to file name follow new name
+    private static final String SQL_RENAME = "UPDATE " + TABLE_NAME +
+            " SET " + KEY_DIR_ID + " = ?1, " + KEY_NAME + " = ?2, " + KEY_NAME_KEY + " = ?5, " +
+            KEY_EXTENSION + " = CASE WHEN " + KEY_DIR + " = 1 THEN '' ELSE ?6 END, " +
+            KEY_TITLE_KEY + " = CASE WHEN " + KEY_DIR + " = 1 THEN ?5 WHEN " + KEY_TITLE + " IS NULL OR " + KEY_TITLE +
+            " = '' THEN ?7 ELSE " + KEY_TITLE_KEY + " END, " +
+            KEY_AUTHOR_KEY + " = CASE WHEN " + KEY_DIR + " = 1 OR " + KEY_AUTHOR_ID + " IS NULL OR (SELECT " + KEY_NAME +
+            " FROM " + AUTHOR_TABLE_NAME + " WHERE " + AUTHOR_TABLE_NAME + "." + KEY_ID + " = " + TABLE_NAME + "." + KEY_AUTHOR_ID +
+            ") = '' THEN ?5 ELSE " + KEY_AUTHOR_KEY + " END" +
+            " WHERE " + KEY_DIR_ID + " = ?3 AND " + KEY_NAME + " = ?4";
+    private static final String SQL_FINGERPRINT = "UPDATE " + TABLE_NAME +
+            " SET " + KEY_MODIFIED + " = ?, " + KEY_SIZE + " = ?" +
+            " WHERE " + KEY_DIR_ID + " = ? AND " + KEY_NAME + " = ?";
+    private static final String SQL_DIRECTORY = "UPDATE " + DIR_TABLE_NAME +
+            " SET " + KEY_MODIFIED + " = ? WHERE " + KEY_ID + " = ?";
+    private static final String SQL_DELETE_DIRECTORY = "UPDATE " + DIR_TABLE_NAME +
+            " SET " + KEY_MODIFIED + " = 0 WHERE " + KEY_PATH + " = ?";
+    // Songs and folders in folder, not found on disk
+    private static final String SQL_RECONCILE = "DELETE FROM " + TABLE_NAME + " WHERE " + KEY_DIR_ID + " = ?" +
+            " AND " + KEY_NAME + " NOT IN (SELECT " + KEY_NAME + " FROM " + RECONCILE_TABLE_NAME + ")";
+    private static final String SQL_RECONCILE_NAME = "INSERT OR IGNORE INTO " + RECONCILE_TABLE_NAME +
+            " (" + KEY_NAME + ") VALUES (?)";
+    // Folders in folder not found on disk, and all folders below them
+    private static final String RECONCILE_VANISHED = "SELECT " + KEY_ID + ", " + KEY_PATH + " FROM " + DIR_TABLE_NAME +
+            " WHERE " + KEY_PARENT_ID + " = ?1 AND " + KEY_NAME + " NOT IN (SELECT " + KEY_NAME + " FROM " + RECONCILE_TABLE_NAME + ")";
+    private static final String RECONCILE_SUBTREES = "SELECT " + KEY_ID + " FROM (" + RECONCILE_VANISHED + ") UNION SELECT d." + KEY_ID +
+            " FROM " + DIR_TABLE_NAME + " d JOIN (" + RECONCILE_VANISHED + ") v ON d." + KEY_PATH + " > v." + KEY_PATH + " || '" +
+            File.separatorChar + "' AND d." + KEY_PATH + " < v." + KEY_PATH + " || '" + (char) (File.separatorChar + 1) + "'";
+    private static final String SQL_RECONCILE_SUBTREE = "DELETE FROM " + TABLE_NAME + " WHERE " + KEY_DIR_ID +
+            " IN (" + RECONCILE_SUBTREES + ")";
+    private static final String SQL_RECONCILE_SUBDIRECTORIES = "DELETE FROM " + DIR_TABLE_NAME + " WHERE " + KEY_ID +
+            " IN (" + RECONCILE_SUBTREES + ")";
+    private static final String SQL_RECONCILE_JOURNAL = "DELETE FROM " + JOURNAL_TABLE_NAME + " WHERE EXISTS (SELECT 1 FROM (" +
+            RECONCILE_VANISHED + ") v WHERE " + JOURNAL_TABLE_NAME + "." + KEY_PATH + " = v." + KEY_PATH + " OR (" +
+            JOURNAL_TABLE_NAME + "." + KEY_PATH + " > v." + KEY_PATH + " || '" + File.separatorChar + "' AND " +
+            JOURNAL_TABLE_NAME + "." + KEY_PATH + " < v." + KEY_PATH + " || '" + (char) (File.separatorChar + 1) + "'))";
+    private static final String SQL_RECONCILE_CLEAR = "DELETE FROM " + RECONCILE_TABLE_NAME;
+    private static final String SQL_MOVE_DIRECTORY = "UPDATE " + DIR_TABLE_NAME +
+            " SET " + KEY_PARENT_ID + " = ?, " + KEY_NAME + " = ?, " + KEY_PATH + " = ? WHERE " + KEY_ID + " = ?";
+    // Folders below moved folder, by range of paths starting with folder path and separator. New
+    // path is new folder path followed by characters after old folder path, counted in SQL.
+    private static final String SQL_MOVE_SUBDIRECTORIES = "UPDATE " + DIR_TABLE_NAME +
+            " SET " + KEY_PATH + " = ?1 || substr(" + KEY_PATH + ", length(?2) + 1) WHERE " + KEY_PATH + " > ?3 AND " + KEY_PATH + " < ?4";
+    private static final String SQL_MOVE_JOURNAL = "UPDATE " + JOURNAL_TABLE_NAME +
+            " SET " + KEY_PATH + " = ?1 || substr(" + KEY_PATH + ", length(?2) + 1) WHERE " + KEY_PATH + " = ?2 OR (" +
+            KEY_PATH + " > ?3 AND " + KEY_PATH + " < ?4)";
+    private static final String SQL_DELETE_TREE = "DELETE FROM " + JOURNAL_TABLE_NAME +
+            " WHERE " + KEY_PATH + " = ? OR (" + KEY_PATH + " > ? AND " + KEY_PATH + " < ?)";
+    // Folder and all folders below, by id and range of paths starting with folder path and separator
+    private static final String SUBTREE = "SELECT " + KEY_ID + " FROM " + DIR_TABLE_NAME +
+            " WHERE " + KEY_ID + " = ? OR (" + KEY_PATH + " > ? AND " + KEY_PATH + " < ?)";
+    private static final String SQL_DELETE_SUBTREE = "DELETE FROM " + TABLE_NAME + " WHERE " + KEY_DIR_ID + " IN (" + SUBTREE + ")";
+    private static final String SQL_DELETE_SUBDIRECTORIES = "DELETE FROM " + DIR_TABLE_NAME +
+            " WHERE " + KEY_ID + " = ? OR (" + KEY_PATH + " > ? AND " + KEY_PATH + " < ?)";
+    private static final String SQL_JOURNAL = "INSERT OR REPLACE INTO " + JOURNAL_TABLE_NAME +
+            " (" + KEY_KIND + ", " + KEY_PATH + ", " + KEY_LENGTH + ") VALUES (?, ?, ?)";
+    private static final String SQL_UNJOURNAL = "DELETE FROM " + JOURNAL_TABLE_NAME +
+            " WHERE " + KEY_KIND + " = ? AND " + KEY_PATH + " = ?";
+    private static final String SQL_CLEAR_JOURNAL = "DELETE FROM " + JOURNAL_TABLE_NAME;
+    private static final String SQL_FIND_DIRECTORY = "SELECT " + KEY_ID + " FROM " + DIR_TABLE_NAME +
+            " WHERE " + KEY_PATH + " = ?";
+    private static final String SQL_INSERT_DIRECTORY = "INSERT INTO " + DIR_TABLE_NAME + " (" +
+            KEY_PARENT_ID + ", " + KEY_NAME + ", " + KEY_PATH + ", " + KEY_MODIFIED + ") VALUES (?, ?, ?, 0)";
+    private static final String SQL_FIND_TYPE = "SELECT " + KEY_ID + " FROM " + TYPE_TABLE_NAME +
+            " WHERE " + KEY_NAME + " = ?";
+    private static final String SQL_INSERT_TYPE = "INSERT INTO " + TYPE_TABLE_NAME + " (" + KEY_NAME + ") VALUES (?)";
+    private static final String SQL_FIND_AUTHOR = "SELECT " + KEY_ID + " FROM " + AUTHOR_TABLE_NAME +
+            " WHERE " + KEY_NAME + " = ?";
+    private static final String SQL_INSERT_AUTHOR = "INSERT INTO " + AUTHOR_TABLE_NAME + " (" + KEY_NAME + ") VALUES (?)";
+    // Full-text rows of songs below folder, removed while content still has old folder paths
+    private static final String SQL_UNINDEX_SUBTREE = "DELETE FROM " + FTS_TABLE_NAME + " WHERE docid IN (SELECT " + KEY_ID +
+            " FROM " + TABLE_NAME + " WHERE " + KEY_DIR_ID + " IN (" + SUBTREE + "))";
+    private static final String SQL_INDEX_SUBTREE = "INSERT INTO " + FTS_TABLE_NAME + " (docid, " + FTS_COLUMNS + ") SELECT rowid, " +
+            FTS_COLUMNS + " FROM " + CONTENT_VIEW_NAME + " WHERE rowid IN (SELECT " + KEY_ID + " FROM " + TABLE_NAME +
+            " WHERE " + KEY_DIR_ID + " IN (" + SUBTREE + "))";
+    private static final String[] SQL = {
+            SQL_INSERT, SQL_DELETE, SQL_RENAME, SQL_FINGERPRINT, SQL_DIRECTORY, SQL_DELETE_DIRECTORY, SQL_RECONCILE,
+            SQL_JOURNAL, SQL_UNJOURNAL, SQL_CLEAR_JOURNAL, SQL_FIND_DIRECTORY, SQL_INSERT_DIRECTORY,
+            SQL_RECONCILE_NAME, SQL_RECONCILE_SUBTREE, SQL_RECONCILE_CLEAR, SQL_MOVE_DIRECTORY, SQL_MOVE_SUBDIRECTORIES,
+            SQL_DELETE_TREE, SQL_DELETE_SUBTREE, SQL_DELETE_SUBDIRECTORIES, SQL_FIND_TYPE, SQL_INSERT_TYPE,
+            SQL_FIND_AUTHOR, SQL_INSERT_AUTHOR, SQL_UNINDEX_SUBTREE, SQL_INDEX_SUBTREE, SQL_MOVE_JOURNAL,
+            SQL_RECONCILE_SUBDIRECTORIES, SQL_RECONCILE_JOURNAL};
+    // Commits pending operations of all writers once they are due
+    private static final ScheduledExecutorService DEADLINE = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, TAG);
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+    private final ReentrantLock mLock = new ReentrantLock();
+    // Held while committing, operations may be queued meanwhile
+    private final ReentrantLock mCommitLock = new ReentrantLock();
+    private final SQLiteOpenHelper mHelper;
+    private final List<Op> mOps;
+    private final Set<String> mPaths;
+    private final Set<String> mCommitPaths;
+    private long mFirstOp;
+    private ScheduledFuture<?> mDeadline;
+
+    private static class Op {
+        final int op;
+        final String path;
+        final AdPlugFile song;
+        final AdPlugFile target;
+        final long modified;
+        final long size;
+        final String[] names;
+
+        Op(int op, String path, AdPlugFile song, AdPlugFile target, long modified, long size) {
+            this(op, path, song, target, modified, size, null);
+        }
+
+        Op(int op, String path, AdPlugFile song, AdPlugFile target, long modified, long size, String[] names) {
+            this.op = op;
+            this.path = path;
+            this.song = song;
+            this.target = target;
+            this.modified = modified;
+            this.size = size;
+            this.names = names;
+        }
+    }
+
+    AdPlugDbWriter(SQLiteOpenHelper helper) {
+        mHelper = helper;
+        mOps = new ArrayList<>();
+        mPaths = new HashSet<>();
+        mCommitPaths = new HashSet<>();
+        mFirstOp = 0;
+        mDeadline = null;
+    }
+
+    void insert(AdPlugFile song, long modified, long size) {
+        enqueue(new Op(OP_INSERT, song.path, song, null, modified, size));
+    }
+
+    // Insert songs, committed together in a single transaction
+    void insert(List<AdPlugFile> songs, long[] modified, long[] size) {
+        mLock.lock();
+        try {
+            if (mOps.isEmpty()) {
+                start(SystemClock.elapsedRealtime());
+            }
+            for (int i = 0; i < songs.size(); i++) {
+                AdPlugFile song = songs.get(i);
+                mOps.add(new Op(OP_INSERT, song.path, song, null, modified[i], size[i]));
+                mPaths.add(song.path);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        flush();
+    }
+
+    void delete(AdPlugFile song) {
+        enqueue(new Op(OP_DELETE, song.path, song, null, 0, 0));
+        if (song.dir) {
+            enqueue(new Op(OP_DELETE_DIRECTORY, song.getFullPath(), null, null, 0, 0));
+        }
+    }
+
+    // Delete songs and folders in folder path, other than names found on disk
+    void reconcile(String path, String[] names) {
+        enqueue(new Op(OP_RECONCILE, path, null, null, 0, 0, names));
+    }
+
+    // Delete songs, and folders with all songs and folders below, committed together in a single transaction
+    void deleteTrees(Collection<String> names) {
+        mLock.lock();
+        try {
+            if (mOps.isEmpty()) {
+                start(SystemClock.elapsedRealtime());
+            }
+            for (String name : names) {
+                File f = new File(name);
+                AdPlugFile song = new AdPlugFile(f.getParent(), f.getName(), null, null, null, null, 0, -1, -1, false, false);
+                mOps.add(new Op(OP_DELETE_TREE, song.path, song, null, 0, 0));
+                mPaths.add(song.path);
+            }
+        } finally {
+            mLock.unlock();
+        }
+        flush();
+    }
+
+    // Delete all songs and folders below folders, keeping rows of folders themselves
+    void deleteFolders(Collection<String> paths) {
+        for (String path : paths) {
+            enqueue(new Op(OP_DELETE_TREE, path, null, null, 0, 0));
+        }
+    }
+
+    void rename(AdPlugFile before, AdPlugFile after) {
+        enqueue(new Op(OP_RENAME, before.path, before, after, 0, 0));
+    }
+
+    // Store fingerprint for existing song
+    void fingerprint(String path, String name, long modified, long size) {
+        AdPlugFile song = new AdPlugFile(path, name, null, null, null, null, 0, -1, -1, false, false);
+        enqueue(new Op(OP_FINGERPRINT, path, song, null, modified, size));
+    }
+
+    // Store modification time of indexed directory
+    void directory(String path, long modified) {
+        enqueue(new Op(OP_DIRECTORY, path, null, null, modified, 0));
+    }
+
+    // Record directory or song still to be indexed
+    void journal(int kind, String path, long length) {
+        enqueue(new Op(OP_JOURNAL, path, null, null, kind, length));
+    }
+
+    void unjournal(int kind, String path) {
+        enqueue(new Op(OP_UNJOURNAL, path, null, null, kind, 0));
+    }
+
+    void clearJournal() {
+        enqueue(new Op(OP_CLEAR_JOURNAL, null, null, null, 0, 0));
+    }
+
+    // Flush pending operations if any of them affect path
+    void flush(String path) {
+        boolean dirty;
+        mLock.lock();
+        try {
+            dirty = mPaths.contains(path) || mCommitPaths.contains(path);
+        } finally {
+            mLock.unlock();
+        }
+        if (dirty) {
+            flush();
+        }
+    }
+
+    // Flush pending operations if any of them affect path, without waiting for a commit already in
+    // progress otherwise. Returns false if that commit affects path, and may not yet be visible.
+    boolean flushPending(String path) {
+        boolean pending;
+        boolean committing;
+        mLock.lock();
+        try {
+            pending = mPaths.contains(path);
+            committing = mCommitPaths.contains(path);
+        } finally {
+            mLock.unlock();
+        }
+        if (pending) {
+            flush();
+            return true;
+        }
+        return !committing;
+    }
+
+    void flush() {
+        mCommitLock.lock();
+        try {
+            List<Op> ops;
+            mLock.lock();
+            try {
+                if (mOps.isEmpty()) {
+                    return;
+                }
+                ops = new ArrayList<>(mOps);
+                mOps.clear();
+                mCommitPaths.addAll(mPaths);
+                mPaths.clear();
+            } finally {
+                mLock.unlock();
+            }
+            commit(ops);
+        } finally {
+            mLock.lock();
+            mCommitPaths.clear();
+            mLock.unlock();
+            mCommitLock.unlock();
+        }
+    }
+
+    // Discard pending operations
+    void clear() {
+        mLock.lock();
+        try {
+            mOps.clear();
+            mPaths.clear();
+        } finally {
+            mLock.unlock();
+        }
+    }
+
+    private void enqueue(Op op) {
+        boolean flush;
+        mLock.lock();
+        try {
+            long now = SystemClock.elapsedRealtime();
+            if (mOps.isEmpty()) {
+                start(now);
+            }
+            mOps.add(op);
+            // Journal entries do not affect song rows
+            if (op.op != OP_JOURNAL && op.op != OP_UNJOURNAL && op.op != OP_CLEAR_JOURNAL) {
+                mPaths.add(op.path);
+            }
+            if (op.target != null) {
+                mPaths.add(op.target.path);
+            }
+            flush = (mOps.size() >= MAX_PENDING) || (now - mFirstOp >= MAX_DELAY);
+        } finally {
+            mLock.unlock();
+        }
+        if (flush) {
+            flush();
+        }
+    }
+
+    // First pending operation queued, called with lock held. Operations queued later are committed
+    // with it, when queue is full or flushed, or by deadline.
+    private void start(long now) {
+        mFirstOp = now;
+        if (mDeadline == null || mDeadline.isDone()) {
+            mDeadline = DEADLINE.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        flush();
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "run: RuntimeException: " + e.getMessage());
+                    }
+                }
+            }, MAX_DELAY, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void commit(List<Op> ops) {
+        if (transact(ops) || ops.size() == 1) {
+            return;
+        }
+        Log.w(TAG, "commit: retrying " + ops.size() + " operations one by one");
+        for (Op op : ops) {
+            transact(Collections.singletonList(op));
+        }
+    }
+
+    // Operations applied together, or not at all
+    private boolean transact(List<Op> ops) {
+        boolean committed = false;
+        SQLiteDatabase db = mHelper.getWritableDatabase();
+        SQLiteStatement[] statements = new SQLiteStatement[SQL.length];
+        Map<String, Long> dirs = new HashMap<>();
+        Map<String, Long> types = new HashMap<>();
+        Map<String, Long> authors = new HashMap<>();
+        // Readers continue on their own connections, with write-ahead logging
+        db.beginTransactionNonExclusive();
+        try {
+            // Names on disk, for reconciling folders
+            db.execSQL("CREATE TEMP TABLE IF NOT EXISTS " + RECONCILE_TABLE_NAME + " (" + KEY_NAME + " TEXT PRIMARY KEY)");
+            for (Op op : ops) {
+                if (op.op == OP_INSERT) {
+                    insert(db, statements, dirs, types, authors, op);
+                } else {
+                    execute(db, statements, dirs, op);
+                }
+            }
+            db.setTransactionSuccessful();
+            committed = true;
+        } catch (android.database.SQLException e) {
+            if (ops.size() == 1) {
+                Log.e(TAG, "commit: SQLException: " + e.getMessage() + ", operation discarded: " + ops.get(0).path);
+            } else {
+                Log.e(TAG, "commit: SQLException: " + e.getMessage());
+            }
+        } finally {
+            db.endTransaction();
+            for (SQLiteStatement statement : statements) {
+                if (statement != null) {
+                    statement.close();
+                }
+            }
+        }
+        return committed;
+    }
+
+    private static SQLiteStatement statement(SQLiteDatabase db, SQLiteStatement[] statements, int op) {
+        if (statements[op] == null) {
+            statements[op] = db.compileStatement(SQL[op]);
+        }
+        return statements[op];
+    }
+
+    private static void execute(SQLiteDatabase db, SQLiteStatement[] statements, Map<String, Long> dirs, Op op) {
+        SQLiteStatement statement = statement(db, statements, op.op);
+        long id;
+        switch (op.op) {
+            case OP_DELETE:
+                id = directory(db, statements, dirs, op.song.path, false);
+                if (id >= 0) {
+                    statement.bindLong(1, id);
+                    bindString(statement, 2, op.song.name);
+                    statement.executeUpdateDelete();
+                }
+                break;
+            case OP_RENAME:
+                // Song or folder not moved into itself, nor replacing folder it is in
+                if (contains(op.song.getFullPath(), op.target.getFullPath()) || contains(op.target.getFullPath(), op.song.getFullPath())) {
+                    Log.w(TAG, "execute: invalid rename: " + op.song.getFullPath() + ", " + op.target.getFullPath());
+                    break;
+                }
+                id = directory(db, statements, dirs, op.song.path, false);
+                long target = directory(db, statements, dirs, op.target.path, true);
+                if (id >= 0 && target >= 0) {
+                    // Any song replaced by rename is removed first, names are unique within folder
+                    SQLiteStatement delete = statement(db, statements, OP_DELETE);
+                    delete.bindLong(1, target);
+                    bindString(delete, 2, op.target.name);
+                    delete.executeUpdateDelete();
+                    statement.bindLong(1, target);
+                    bindString(statement, 2, op.target.name);
+                    statement.bindLong(3, id);
+                    bindString(statement, 4, op.song.name);
+                    statement.bindString(5, AdPlugDbSortKeys.name(op.target.name));
+                    statement.bindString(6, AdPlugDbSortKeys.extension(op.target.name, false));
+                    statement.bindString(7, AdPlugDbSortKeys.title(op.target.name, null, false));
+                    statement.executeUpdateDelete();
+                    move(db, statements, dirs, op.song.getFullPath(), op.target.getFullPath(), target, op.target.name);
+                }
+                break;
+            case OP_FINGERPRINT:
+                id = directory(db, statements, dirs, op.song.path, false);
+                if (id >= 0) {
+                    statement.bindLong(1, op.modified);
+                    statement.bindLong(2, op.size);
+                    statement.bindLong(3, id);
+                    bindString(statement, 4, op.song.name);
+                    statement.executeUpdateDelete();
+                }
+                break;
+            case OP_DIRECTORY:
+                id = directory(db, statements, dirs, op.path, true);
+                if (id >= 0) {
+                    statement.bindLong(1, op.modified);
+                    statement.bindLong(2, id);
+                    statement.executeUpdateDelete();
+                }
+                break;
+            case OP_DELETE_DIRECTORY:
+                // Folder row is kept, as songs below it refer to it by id
+                bindString(statement, 1, op.path);
+                statement.executeUpdateDelete();
+                break;
+            case OP_RECONCILE:
+                id = directory(db, statements, dirs, op.path, false);
+                if (id >= 0) {
+                    reconcile(db, statements, dirs, statement, id, op.names);
+                }
+                break;
+            case OP_DELETE_TREE:
+                if (op.song == null) {
+                    deleteTree(db, statements, dirs, statement, op.path);
+                    break;
+                }
+                id = directory(db, statements, dirs, op.song.path, false);
+                if (id >= 0) {
+                    SQLiteStatement delete = statement(db, statements, OP_DELETE);
+                    delete.bindLong(1, id);
+                    bindString(delete, 2, op.song.name);
+                    delete.executeUpdateDelete();
+                }
+                deleteTree(db, statements, dirs, statement, op.song.getFullPath());
+                break;
+            case OP_JOURNAL:
+                statement.bindLong(1, op.modified);
+                bindString(statement, 2, op.path);
+                statement.bindLong(3, op.size);
+                statement.executeInsert();
+                break;
+            case OP_UNJOURNAL:
+                statement.bindLong(1, op.modified);
+                bindString(statement, 2, op.path);
+                statement.executeUpdateDelete();
+                break;
+            case OP_CLEAR_JOURNAL:
+                statement.executeUpdateDelete();
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Names found on disk are collected in temporary table, and all other rows deleted in one statement.
+    // Folders not found on disk are deleted with all songs and folders below.
+    private static void reconcile(SQLiteDatabase db, SQLiteStatement[] statements, Map<String, Long> dirs, SQLiteStatement reconcile, long id, String[] names) {
+        SQLiteStatement clear = statement(db, statements, OP_RECONCILE_CLEAR);
+        clear.executeUpdateDelete();
+        SQLiteStatement insert = statement(db, statements, OP_RECONCILE_NAME);
+        for (String name : names) {
+            bindString(insert, 1, name);
+            insert.executeInsert();
+        }
+        reconcile.bindLong(1, id);
+        reconcile.executeUpdateDelete();
+        // Songs are deleted before their folders, full-text index reads folder paths
+        int[] ops = {OP_RECONCILE_JOURNAL, OP_RECONCILE_SUBTREE, OP_RECONCILE_SUBDIRECTORIES};
+        int deleted = 0;
+        for (int op : ops) {
+            SQLiteStatement statement = statement(db, statements, op);
+            statement.bindLong(1, id);
+            deleted = statement.executeUpdateDelete();
+        }
+        if (deleted > 0) {
+            dirs.clear();
+        }
+    }
+
+    // Moved folder and all folders below updated with new path, songs refer to folders by id and
+    // are indexed again with new folder paths. Songs and folders left at new path, such as by a
+    // folder deleted earlier, are deleted first. Journal entries follow song or folder.
+    private static void move(SQLiteDatabase db, SQLiteStatement[] statements, Map<String, Long> dirs, String before, String after, long parentId, String name) {
+        deleteTree(db, statements, dirs, statement(db, statements, OP_DELETE_TREE), after);
+        String from = before + File.separator;
+        String to = before + (char) (File.separatorChar + 1);
+        SQLiteStatement statement = statement(db, statements, OP_MOVE_JOURNAL);
+        bindString(statement, 1, after);
+        bindString(statement, 2, before);
+        bindString(statement, 3, from);
+        bindString(statement, 4, to);
+        statement.executeUpdateDelete();
+        long id = directory(db, statements, dirs, before, false);
+        if (id < 0) {
+            return;
+        }
+        subtree(db, statements, OP_UNINDEX_SUBTREE, id, before);
+        statement = statement(db, statements, OP_MOVE_DIRECTORY);
+        statement.bindLong(1, parentId);
+        bindString(statement, 2, name);
+        bindString(statement, 3, after);
+        statement.bindLong(4, id);
+        statement.executeUpdateDelete();
+        statement = statement(db, statements, OP_MOVE_SUBDIRECTORIES);
+        bindString(statement, 1, after);
+        bindString(statement, 2, before);
+        bindString(statement, 3, from);
+        bindString(statement, 4, to);
+        statement.executeUpdateDelete();
+        subtree(db, statements, OP_INDEX_SUBTREE, id, after);
+        dirs.clear();
+    }
+
+    // Path is folder or below folder
+    private static boolean contains(String folder, String path) {
+        return path.equals(folder) || path.startsWith(folder + File.separator);
+    }
+
+    // Statement on songs below folder
+    private static void subtree(SQLiteDatabase db, SQLiteStatement[] statements, int op, long id, String path) {
+        SQLiteStatement statement = statement(db, statements, op);
+        statement.bindLong(1, id);
+        bindString(statement, 2, path + File.separator);
+        bindString(statement, 3, path + (char) (File.separatorChar + 1));
+        statement.executeUpdateDelete();
+    }
+
+    // Songs and folders below folder, by range of paths starting with folder path and separator
+    private static void deleteTree(SQLiteDatabase db, SQLiteStatement[] statements, Map<String, Long> dirs, SQLiteStatement journal, String path) {
+        String from = path + File.separator;
+        String to = path + (char) (File.separatorChar + 1);
+        long id = directory(db, statements, dirs, path, false);
+        if (id >= 0) {
+            SQLiteStatement statement = statement(db, statements, OP_DELETE_SUBTREE);
+            statement.bindLong(1, id);
+            bindString(statement, 2, from);
+            bindString(statement, 3, to);
+            statement.executeUpdateDelete();
+            statement = statement(db, statements, OP_DELETE_SUBDIRECTORIES);
+            statement.bindLong(1, id);
+            bindString(statement, 2, from);
+            bindString(statement, 3, to);
+            statement.executeUpdateDelete();
+            dirs.clear();
+        }
+        bindString(journal, 1, path);
+        bindString(journal, 2, from);
+        bindString(journal, 3, to);
+        journal.executeUpdateDelete();
+    }
+
+    // Folder id for path, or -1 if not found. Folder and any missing parent folders added if create.
+    private static long directory(SQLiteDatabase db, SQLiteStatement[] statements, Map<String, Long> dirs, String path, boolean create) {
+        if (path == null) {
+            return -1;
+        }
+        Long known = dirs.get(path);
+        if (known != null) {
+            return known;
+        }
+        SQLiteStatement find = statement(db, statements, OP_FIND_DIRECTORY);
+        bindString(find, 1, path);
+        long id;
+        try {
+            id = find.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            id = -1;
+        }
+        if (id < 0 && create) {
+            File f = new File(path);
+            String parent = f.getParent();
+            long parentId = (parent != null) ? directory(db, statements, dirs, parent, true) : 0;
+            SQLiteStatement insert = statement(db, statements, OP_INSERT_DIRECTORY);
+            insert.bindLong(1, parentId);
+            bindString(insert, 2, f.getName());
+            bindString(insert, 3, path);
+            id = insert.executeInsert();
+        }
+        if (id >= 0) {
+            dirs.put(path, id);
+        }
+        return id;
+    }
+
+    // Song type and author looked up in dictionaries, and added if not found
+    private static void insert(SQLiteDatabase db, SQLiteStatement[] statements, Map<String, Long> dirs,
+                               Map<String, Long> types, Map<String, Long> authors, Op op) {
+        AdPlugFile song = op.song;
+        long id = directory(db, statements, dirs, song.path, true);
+        if (id < 0) {
+            Log.w(TAG, "insert: invalid folder: " + song.path);
+            return;
+        }
+        if (song.dir) {
+            directory(db, statements, dirs, song.getFullPath(), true);
+        }
+        long type = dictionary(db, statements, types, OP_FIND_TYPE, song.type);
+        long author = dictionary(db, statements, authors, OP_FIND_AUTHOR, song.author);
+        SQLiteStatement insert = statement(db, statements, OP_INSERT);
+        insert.bindLong(1, id);
+        bindString(insert, 2, song.name);
+        bindId(insert, 3, type);
+        bindString(insert, 4, song.title);
+        bindId(insert, 5, author);
+        bindString(insert, 6, song.desc);
+        insert.bindLong(7, song.length);
+        insert.bindLong(8, song.songlength);
+        insert.bindLong(9, song.subsongs);
+        insert.bindLong(10, song.valid ? 1 : 0);
+        insert.bindLong(11, song.dir ? 1 : 0);
+        insert.bindLong(12, song.playlist ? 1 : 0);
+        insert.bindLong(13, op.modified);
+        insert.bindLong(14, op.size);
+        insert.bindString(15, AdPlugDbSortKeys.name(song.name));
+        insert.bindString(16, AdPlugDbSortKeys.title(song.name, song.title, song.dir));
+        insert.bindString(17, AdPlugDbSortKeys.author(song.name, song.author, song.dir));
+        insert.bindString(18, AdPlugDbSortKeys.extension(song.name, song.dir));
+        insert.executeInsert();
+    }
+
+    // Dictionary id for name, or -1 if name is null. Insert statement follows find statement.
+    private static long dictionary(SQLiteDatabase db, SQLiteStatement[] statements, Map<String, Long> ids, int find, String name) {
+        if (name == null) {
+            return -1;
+        }
+        Long known = ids.get(name);
+        if (known != null) {
+            return known;
+        }
+        SQLiteStatement statement = statement(db, statements, find);
+        bindString(statement, 1, name);
+        long id;
+        try {
+            id = statement.simpleQueryForLong();
+        } catch (SQLiteDoneException e) {
+            statement = statement(db, statements, find + 1);
+            bindString(statement, 1, name);
+            id = statement.executeInsert();
+        }
+        ids.put(name, id);
+        return id;
+    }
+
+    private static void bindId(SQLiteStatement statement, int index, long id) {
+        if (id >= 0) {
+            statement.bindLong(index, id);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+
+    private static void bindString(SQLiteStatement statement, int index, String value) {
+        if (value != null) {
+            statement.bindString(index, value);
+        } else {
+            statement.bindNull(index);
+        }
+    }
+}
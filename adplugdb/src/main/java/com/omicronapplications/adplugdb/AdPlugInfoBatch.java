@@ -0,0 +1,53 @@
+package com.omicronapplications.adplugdb;
+
+public class AdPlugInfoBatch {
+    public AdPlugInfoBatch(int size) {
+        this.songs = new String[size];
+        this.types = new String[size];
+        this.titles = new String[size];
+        this.authors = new String[size];
+        this.descs = new String[size];
+        this.lengths = new long[size];
+        this.songlengths = new long[size];
+        this.subsongs = new int[size];
+        this.valid = new boolean[size];
+        this.playlist = new boolean[size];
+    }
+
+    public void set(int index, String song, String type, String title, String author, String desc, long length, long songlength, int subsongs, boolean valid, boolean playlist) {
+        this.songs[index] = song;
+        this.types[index] = type;
+        this.titles[index] = title;
+        this.authors[index] = author;
+        this.descs[index] = desc;
+        this.lengths[index] = length;
+        this.songlengths[index] = songlength;
+        this.subsongs[index] = subsongs;
+        this.valid[index] = valid;
+        this.playlist[index] = playlist;
+    }
+
+    public int size() {
+        return songs.length;
+    }
+
+    // Copy of batch, caller may reuse batch once handed over
+    AdPlugInfoBatch copy() {
+        AdPlugInfoBatch copy = new AdPlugInfoBatch(size());
+        for (int i = 0; i < size(); i++) {
+            copy.set(i, songs[i], types[i], titles[i], authors[i], descs[i], lengths[i], songlengths[i], subsongs[i], valid[i], playlist[i]);
+        }
+        return copy;
+    }
+
+    public final String[] songs;
+    public final String[] types;
+    public final String[] titles;
+    public final String[] authors;
+    public final String[] descs;
+    public final long[] lengths;
+    public final long[] songlengths;
+    public final int[] subsongs;
+    public final boolean[] valid;
+    public final boolean[] playlist;
+}
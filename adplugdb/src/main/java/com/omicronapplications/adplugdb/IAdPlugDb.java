@@ -1,5 +1,7 @@
 package com.omicronapplications.adplugdb;
 
+import java.util.Collection;
+
 public interface IAdPlugDb {
     int SORTBY_NONE = 0;
     int SORTBY_TITLE = 1;
@@ -7,6 +9,7 @@ public interface IAdPlugDb {
     int SORTBY_FILE = 3;
     int SORTBY_TYPE = 4;
     int SORTBY_LENGTH = 5;
+    int SORTBY_SHUFFLE = 6;
     int ORDER_NONE = 0;
     int ORDER_ASCENDING = 1;
     int ORDER_DESCENDING = 2;
@@ -15,11 +18,25 @@ public interface IAdPlugDb {
     void index(String root, boolean quick);
     void delete();
     void list(String path, int sortby, int order, boolean quick, boolean hide, boolean random);
+    void listPage(String path, int sortby, int order, boolean hide, int offset, int limit);
     void playlist();
     void add(String song, long length);
     void remove(String song);
+    void removeTree(String path);
+    void removeAll(Collection<String> songs);
     void rename(String before, String after);
     void getCount();
+    void exportSnapshot(String file);
+    void importSnapshot(String file);
+    void getProgress();
+    void getCacheStats();
     void search(String query);
     void onSongInfo(String song, String type, String title, String author, String desc, long length, long songlength, int subsongs, boolean valid, boolean playlist);
+    void onSongInfoBatch(AdPlugInfoBatch batch);
+    void setParallelism(int parallelism);
+    void setInfoBatchSize(int size);
+    void setSniffHeaders(boolean sniff);
+    void setFastMetadata(boolean fast);
+    void setWatch(boolean watch);
+    void setShuffleSeed(long seed);
 }
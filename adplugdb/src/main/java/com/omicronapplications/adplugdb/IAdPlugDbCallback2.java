@@ -0,0 +1,13 @@
+package com.omicronapplications.adplugdb;
+
+import java.util.List;
+
+// Callbacks added after IAdPlugDbCallback. Callbacks implementing IAdPlugDbCallback only are asked
+// for song information through requestInfo() one song at a time, and get no page, progress or
+// cache statistics callbacks.
+public interface IAdPlugDbCallback2 extends IAdPlugDbCallback {
+    void requestInfoBatch(String[] names, long[] lengths);
+    void onListPage(String path, List<AdPlugFile> songs, int offset, long total);
+    void onGetProgress(long outstanding, long completed, long skipped);
+    void onGetCacheStats(int hits, int misses, int size);
+}